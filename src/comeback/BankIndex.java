@@ -0,0 +1,23 @@
+package comeback;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Somewhere limbs can be looked up by the labels that the rules care about,
+ * so only the part of a bank that could possibly match a template node is read.
+ *
+ * @author david
+ *
+ */
+public interface BankIndex {
+	/**
+	 * Trees whose root is labelled <code>rootLabel</code> and, unless it is null,
+	 * whose first child is labelled <code>firstChildLabel</code>.
+	 */
+	public Iterable<Tree> candidates(String rootLabel, String firstChildLabel);
+
+	/**
+	 * Fingerprint of the contents, which changes whenever the trees do.
+	 */
+	public long version();
+}
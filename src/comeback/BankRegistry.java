@@ -0,0 +1,219 @@
+package comeback;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import util.Fingerprints;
+
+import com.google.common.base.Function;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Holds every loaded substitution bank and publishes them together as an immutable
+ * {@link Snapshot}.
+ *
+ * Changes are copy-on-write: a bank is (re)loaded off to the side, a new snapshot is
+ * built from it and the current one, and the reference is swapped atomically.  Readers
+ * just grab the current snapshot and never block, and a snapshot they hold stays
+ * consistent for as long as they use it (eg. for one sentence).
+ *
+ * <code>startWatching</code> polls the bank files and reloads the ones that change,
+ * so banks can be edited while generation keeps going.  A bank whose file can't be
+ * read (eg. it was deleted) keeps its last good copy, and isn't tried again until
+ * the file changes again.
+ *
+ * @author david
+ *
+ */
+public class BankRegistry {
+
+	/**
+	 * The banks at one point in time.  Each bank is its own immutable shard; the
+	 * index merges them by root label.
+	 */
+	public static final class Snapshot implements BankIndex {
+		public final ImmutableList<SubstitutionBank> banks;
+		private final ImmutableMap<String, Set<Tree>> index;
+		private final Map<Tree, Double> weights;	// identity, limb -> weight of its bank
+		private final long version;
+
+		private Snapshot(ImmutableList<SubstitutionBank> banks) {
+			this.banks = banks;
+
+			Map<String, ImmutableSet.Builder<Tree>> merged = Maps.newLinkedHashMap();
+			Map<Tree, Double> weights = Maps.newIdentityHashMap();
+			long version = Fingerprints.FNV_OFFSET;
+			for (SubstitutionBank bank : banks) {
+				for (Map.Entry<String, Set<Tree>> entry : bank.index().entrySet()) {
+					ImmutableSet.Builder<Tree> trees = merged.get(entry.getKey());
+					if (trees == null) {
+						trees = ImmutableSet.builder();
+						merged.put(entry.getKey(), trees);
+					}
+					trees.addAll(entry.getValue());
+					for (Tree tree : entry.getValue())
+						if (!weights.containsKey(tree))
+							weights.put(tree, bank.weight);
+				}
+				version = Fingerprints.mix(version, bank.version());
+			}
+
+			ImmutableMap.Builder<String, Set<Tree>> index = ImmutableMap.builder();
+			for (Map.Entry<String, ImmutableSet.Builder<Tree>> entry : merged.entrySet())
+				index.put(entry.getKey(), entry.getValue().build());
+			this.index = index.build();
+			this.weights = weights;
+			this.version = version;
+		}
+
+		/**
+		 * All the banks' trees by root label, in the shape <code>FrankenTreeFactory.buildLimbventory</code> wants.
+		 */
+		public ImmutableMap<String, Set<Tree>> index() {
+			return index;
+		}
+
+		@Override
+		public Iterable<Tree> candidates(String rootLabel, final String firstChildLabel) {
+			Set<Tree> trees = index.get(rootLabel);
+			if (trees == null)
+				return ImmutableSet.of();
+			if (firstChildLabel == null)
+				return trees;
+			return Iterables.filter(trees, new Predicate<Tree>() {
+				@Override
+				public boolean apply(Tree tree) {
+					return !tree.isLeaf() && firstChildLabel.equals(tree.firstChild().value());
+				}
+			});
+		}
+
+		/**
+		 * Fingerprint of the contents of all the banks
+		 */
+		@Override
+		public long version() {
+			return version;
+		}
+
+		/**
+		 * The weight of the bank each limb came from, for sampling
+		 */
+		public Function<Tree, Double> weights() {
+			return new Function<Tree, Double>() {
+				@Override
+				public Double apply(Tree limb) {
+					Double weight = weights.get(limb);
+					return weight == null ? 1.0 : weight;
+				}
+			};
+		}
+	}
+
+	private final Function<String, Tree> parser;
+	private final AtomicReference<Snapshot> current =
+			new AtomicReference<Snapshot>(new Snapshot(ImmutableList.<SubstitutionBank>of()));
+	private ScheduledExecutorService watcher;
+	private final Map<String, Long> failed = Maps.newHashMap();	// bank name -> lastModified of its file when reloading failed
+
+	/**
+	 * @param parser
+	 * 		turns a line of a bank file into a tree
+	 */
+	public BankRegistry(Function<String, Tree> parser) {
+		this.parser = parser;
+	}
+
+	/**
+	 * The current banks.  Never blocks.
+	 */
+	public Snapshot snapshot() {
+		return current.get();
+	}
+
+	/**
+	 * Loads a bank and publishes it, replacing any bank with the same name.
+	 */
+	public synchronized void add(String name, File file, double weight) throws IOException {
+		publish(SubstitutionBank.load(name, file, weight, parser));
+		failed.remove(name);
+	}
+
+	/**
+	 * Reloads every bank whose file changed since it was loaded.
+	 * @return the number of banks reloaded
+	 */
+	public synchronized int reloadChanged() {
+		int reloaded = 0;
+		for (SubstitutionBank bank : current.get().banks) {
+			if (!bank.isStale()) continue;
+			long lastModified = bank.file.lastModified();		// 0 once the file is gone
+			Long failedAt = failed.get(bank.name);
+			if (failedAt != null && failedAt == lastModified) continue;
+			try {
+				publish(SubstitutionBank.load(bank.name, bank.file, bank.weight, parser));
+				failed.remove(bank.name);
+				reloaded++;
+				System.out.println("Reloaded bank " + bank.name);
+			} catch (IOException e) {
+				// keep serving the old copy
+				failed.put(bank.name, lastModified);
+				System.out.println("Couldn't reload bank " + bank.name + ", keeping the last copy: " + e);
+			}
+		}
+		return reloaded;
+	}
+
+	private void publish(SubstitutionBank bank) {
+		List<SubstitutionBank> banks = Lists.newArrayList();
+		boolean replaced = false;
+		for (SubstitutionBank old : current.get().banks) {
+			if (old.name.equals(bank.name)) {
+				banks.add(bank);
+				replaced = true;
+			} else {
+				banks.add(old);
+			}
+		}
+		if (!replaced)
+			banks.add(bank);
+		current.set(new Snapshot(ImmutableList.copyOf(banks)));
+	}
+
+	/**
+	 * Checks the bank files for changes every <code>periodMillis</code> on a daemon thread.
+	 */
+	public synchronized void startWatching(long periodMillis) {
+		if (watcher != null) return;
+		watcher = Executors.newSingleThreadScheduledExecutor(
+				new ThreadFactoryBuilder().setDaemon(true).setNameFormat("bank-watcher").build());
+		watcher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reloadChanged();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stopWatching() {
+		if (watcher == null) return;
+		watcher.shutdownNow();
+		watcher = null;
+	}
+}
@@ -2,25 +2,29 @@ package comeback;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.LinkedList;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.concurrent.ForkJoinPool;
 
 import util.Crawler;
+import util.ExternalDedup;
+import util.Fingerprints;
+import util.TreeIndex;
 
+import com.google.common.base.Function;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 
-import edu.stanford.nlp.ling.Word;
 import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
 import edu.stanford.nlp.trees.GrammaticalStructureFactory;
 import edu.stanford.nlp.trees.PennTreebankLanguagePack;
@@ -29,17 +33,17 @@ import edu.stanford.nlp.trees.TreebankLanguagePack;
 
 class ComebackGenerator {
 
-	private static final String BANK_PATH = "bank/";
-	private static final String DATA_PATH = "data/";
-	private static final String DATA_INPUT_PATH = DATA_PATH + "input/";
+	static final String BANK_PATH = "bank/";
+	static final String DATA_PATH = "data/";
+	static final String DATA_INPUT_PATH = DATA_PATH + "input/";
 	private static final String DATA_OUTPUT_PATH = DATA_PATH + "output/";
-	private static final String MODELS_PATH = "lib/edu/stanford/nlp/models/lexparser/";
-	private static final String ENGLISH_PCFG_PATH = MODELS_PATH + "englishPCFG.ser.gz";
+	private static final Charset UTF8 = Charset.forName("UTF-8");		// inputs and outputs, same as ShardedRun's
+	static final String MODELS_PATH = "lib/edu/stanford/nlp/models/lexparser/";
+	static final String ENGLISH_PCFG_PATH = MODELS_PATH + "englishPCFG.ser.gz";
+	static final String SELECTED_MODEL_PATH = DATA_PATH + "parser.properties";	// written by ParserBenchmark -select
+	private static final String PARSER_MODEL = modelPath(System.getProperty("comeback.parserModel", "auto"));
 
-	private static final LexicalizedParser lp = LexicalizedParser.loadModel(ENGLISH_PCFG_PATH); 
-	static {
-		lp.setOptionFlags(new String[]{"-maxLength", "80", "-retainTmpSubcategories"});
-	}
+	private static final LexicalizedParser lp = loadParser(PARSER_MODEL);
 	
 	private static final TreebankLanguagePack tlp = new PennTreebankLanguagePack();
 	private static final GrammaticalStructureFactory gsf = tlp.grammaticalStructureFactory();
@@ -53,14 +57,8 @@ class ComebackGenerator {
 	
 	public static <T>void processFile(File input, SentenceFn<T> callback) throws IOException {
 		
-		BufferedReader in = new BufferedReader(new FileReader(input));
-		StringTokenizer inputTok = new StringTokenizer(input.getPath(), "/");
-		String tail = "dumb";
-		while(inputTok.hasMoreTokens()) {
-			tail = inputTok.nextToken();
-		}
-		String outputFileName = DATA_OUTPUT_PATH + tail;
-		PrintWriter out = new PrintWriter(new FileWriter(outputFileName));
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input), UTF8));
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(outputFile(input)), UTF8));
 		
 		
 		String line,tagged;
@@ -72,6 +70,18 @@ class ComebackGenerator {
 	}
 	
 	
+	/**
+	 * Where the comebacks of the sentences in <code>input</code> are written
+	 */
+	static File outputFile(File input) {
+		StringTokenizer inputTok = new StringTokenizer(input.getPath(), "/");
+		String tail = "dumb";
+		while(inputTok.hasMoreTokens()) {
+			tail = inputTok.nextToken();
+		}
+		return new File(DATA_OUTPUT_PATH + tail);
+	}
+	
 	/**
 	 * This makes the 
 	 * @param sentence
@@ -80,93 +90,117 @@ class ComebackGenerator {
 		return callback.apply(sentence, out);
 	}
 	
-	private static Set<String> verbs = Sets.newHashSet(Arrays.asList("VP","VB", "VBG", "VBD"));
-	private static Set<String> nouns = Sets.newHashSet(Arrays.asList("NP","NNS", "NN"));
-	private static Set<String> restricted = Sets.newHashSet(Arrays.asList("You", "you", "Your", "your", "I", "my"));
-	private static Map<String, Set<Tree>> substitutionBank; // key: either a tagged value or CFG value
-														   // value: a list of trees from the bank who have the key as their root label
+	static final ReplacementRules RULES = new ReplacementRules.Builder()
+			.labelClass("verb", "VP", "VB", "VBG", "VBD")
+			.labelClass("phrase", "VP", "NP")
+			.requireSameFirstChild("phrase")
+			.substitutable("phrase")
+			.substitutable("verb")
+			.restrict("You", "you", "Your", "your", "I", "my")
+			.compile();
+	private static final int MAX_SUBSTITUTIONS = Integer.getInteger("comeback.maxSubstitutions", 0);	// > 0 to search comebacks made one substitution at a time, up to this many
+	private static final long RESULT_VERSION = Fingerprints.mix(Fingerprints.mix(RULES.version(), Fingerprints.fnv64(PARSER_MODEL)),
+			MAX_SUBSTITUTIONS);	// results depend on the parses and the search too
+	private static final int SAMPLE_SIZE = Integer.getInteger("comeback.sample", 0);	// > 0 to draw this many random comebacks per sentence
+	private static final boolean SEQUENTIAL = Boolean.getBoolean("comeback.sequential");	// generate each sentence on one thread
+	private static final boolean EXPLAIN = Boolean.getBoolean("comeback.explain");	// report each sentence's search space instead of generating
+	private static final boolean YIELD_ONLY = Boolean.getBoolean("comeback.yieldOnly");	// only write the words of each comeback, without building trees when enumerating them all
+	private static final boolean CACHE_RESULTS = SAMPLE_SIZE <= 0 && !EXPLAIN && !YIELD_ONLY;	// only whole results written in full are remembered
+	private static final long STREAM_LIMIT = Long.getLong("comeback.streamLimit", 100000000L);	// most comebacks to write out when they don't fit in memory
+	private static final int SPILL_THRESHOLD = Integer.getInteger("comeback.spillThreshold", 1000000);	// comebacks held for de-duplication before spilling to disk
+	private static final String SPILL_DIR = System.getProperty("comeback.spillDir");	// where spilled runs go, the temporary directory if unset
+	private static final long DEADLINE_MILLIS = Long.getLong("comeback.deadlineMillis", 0);	// > 0 to stop generating a sentence after this long (eg. in batch or sharded runs)
+	private static final int SHARDS = Integer.getInteger("comeback.shards", 0);	// > 0 to coordinate workers over this many shards per input file
+	private static final int WORKERS = Integer.getInteger("comeback.workers", 2);	// local worker JVMs the coordinator starts
+	private static final String SHARD_DIR = System.getProperty("comeback.shardDir", DATA_PATH + "shards/");	// job directory shared with the workers
+	private static final String WORKER_OF = System.getProperty("comeback.workerOf");	// job directory to take shards from, instead of reading the input
+	private static final ForkJoinPool generationPool = new ForkJoinPool();	// starts its threads on first use
+	private static final int LIMBVENTORY_CACHE_SIZE = 100000;		// distinct template subtrees to remember limbs for
+	private static final LimbventoryCache limbventoryCache = new LimbventoryCache(LIMBVENTORY_CACHE_SIZE);
+	private static final String BANKS = System.getProperty("comeback.banks", "cards-small");	// comma separated name[:weight] in data/bank/
+	private static final long BANK_RELOAD_MILLIS = Long.getLong("comeback.bankReloadMillis", 10000);
+	private static final String MAPPED_BANK = System.getProperty("comeback.mappedBank");	// a MappedBankStore file to use instead
+	private static final BankRegistry bankRegistry = new BankRegistry(parser());
+	private static final String RESULT_CACHE = System.getProperty("comeback.resultCache", DATA_PATH + "cache/");	// "" to keep results in memory only
+	private static final long RESULT_CACHE_SIZE = Long.getLong("comeback.resultCacheSize", 1000000);	// most comebacks kept in memory
+	private static final ResultCache resultCache =
+			new ResultCache(RESULT_CACHE_SIZE, RESULT_CACHE.isEmpty() ? null : new File(RESULT_CACHE));
+	private static BankIndex mappedBank;
+	private static CompactBank compactBank;						// classes of the current bank, remade when it changes
 	
-	private static Map<String, Set<Tree>> buildSubstitutionBank() throws IOException {
-		Map<String, Set<Tree>> bank = Maps.newHashMap();
-		File bankFile = new File(DATA_PATH + BANK_PATH + "cards-small");
-		BufferedReader in = new BufferedReader(new FileReader(bankFile));
-		String line;
-		while ((line = in.readLine()) != null){
-			Tree parse = lp.apply(line);	
-			Map<String, Set<Tree>> toAdd = Maps.newHashMap();
-		
-			// Flatten away ROOT and FRAGs
-			while(parse.value().equals("ROOT") || parse.value().equals("FRAG")){
-				parse = parse.firstChild();
-			}
-			
-			// Take out S
-			if (parse.value().equals("S")) {
-				for (Tree child : parse.children()){
-					Set<Tree> toPut = Sets.newHashSet();
-					if (toAdd.keySet().contains(child.value()))
-						toPut.addAll(toAdd.get(child.value()));
-					toPut.add(child);
-					toAdd.put(child.value(), toPut);
-				}
-			} else {
-				Set<Tree> toPut = Sets.newHashSet();
-				if (toAdd.keySet().contains(parse.value()))
-					toPut.addAll(toAdd.get(parse.value()));
-				toPut.add(parse);
-				toAdd.put(parse.value(), toPut);
-			}
-			
-			for (String key : toAdd.keySet()) {
-				Set<Tree> toPut = Sets.newHashSet();
-				if (bank.keySet().contains(key))
-					toPut.addAll(bank.get(key));
-				toPut.addAll(toAdd.get(key));
-				bank.put(key, toPut);
-			}
-			int k = 1;
+	/**
+	 * The model file for <code>name</code>: "auto" for the one ParserBenchmark last
+	 * selected (englishPCFG if it never has), the name of a model in
+	 * <code>MODELS_PATH</code> (eg. "wsjPCFG"), or a path.
+	 */
+	static String modelPath(String name) {
+		if (name.equals("auto")) {
+			String selected = ParserBenchmark.readSelection(new File(SELECTED_MODEL_PATH));
+			return selected == null ? ENGLISH_PCFG_PATH : selected;
 		}
-		return bank;
+		File named = new File(MODELS_PATH + name + (name.endsWith(".ser.gz") ? "" : ".ser.gz"));
+		return named.exists() ? named.getPath() : name;
 	}
 	
-	/**
-	 * Get all the possible replacements for a given set of parse trees given the
-	 * substitution bank.
-	 * @return
-	 */	
-	private static Set<Tree> doSubstitutionOnTrees(List<Tree> roots, Set<Tree> substitutions) {
-		Set<SubstitutedTree> substitutedTrees = Sets.newHashSet();
-		for (Tree root : roots) {
-			substitutedTrees.addAll(doSubstitutionsOnTree(root, substitutions));
-		}
-		Set<Tree> ret = Sets.newHashSet();
-		for (SubstitutedTree substitutedTree : substitutedTrees) {
-			ret.add(substitutedTree.tree);
-		}
+	static LexicalizedParser loadParser(String modelPath) {
+		LexicalizedParser ret = LexicalizedParser.loadModel(modelPath);
+		ret.setOptionFlags(new String[]{"-maxLength", "80", "-retainTmpSubcategories"});
 		return ret;
 	}
 	
+	/**
+	 * The parser as a function, for loading banks
+	 */
+	static Function<String, Tree> parser() {
+		return parser(lp);
+	}
 	
-	private static Set<SubstitutedTree> doSubstitutionsOnTree(Tree root, Set<Tree> substitutions) {
-		Set<SubstitutedTree> substitutedTrees = Sets.newHashSet();
-		Queue<SubstitutedTree> queue = Lists.<SubstitutedTree>newLinkedList();
-		
-		SubstitutedTree init = new SubstitutedTree(root, Sets.<Tree>newHashSet());
-		
-		queue.add(init);
-		// should terminate because we disallow nested substitutions
-		while (!queue.isEmpty()) {
-			SubstitutedTree cur = queue.remove();
-			System.out.println("Cur : " + cur + " Queue size: " + queue.size());
-			
-			for (Tree substitution : substitutions) {
-				Set<SubstitutedTree> possibleSubstitutions = doSubstitutionOnTree(cur, substitution);
-				substitutedTrees.addAll(possibleSubstitutions);
-				queue.addAll(possibleSubstitutions);
+	static Function<String, Tree> parser(final LexicalizedParser parser) {
+		return new Function<String, Tree>() {
+			@Override
+			public Tree apply(String line) {
+				return parser.apply(line);
 			}
+		};
+	}
+	
+	/**
+	 * <code>bank</code> grouped into classes for <code>RULES</code>, reusing the classes
+	 * worked out so far while the bank doesn't change.  The mapped bank is used as is,
+	 * so the trees it reads don't stay on the heap.
+	 */
+	private static BankIndex compact(BankIndex bank) {
+		if (bank == mappedBank)
+			return bank;
+		if (compactBank == null || compactBank.version() != bank.version())
+			compactBank = new CompactBank(bank, RULES);
+		return compactBank;
+	}
+	
+	private static void loadBanks() throws IOException {
+		for (String spec : BANKS.split(",")) {
+			String[] nameAndWeight = spec.trim().split(":");
+			String name = nameAndWeight[0];
+			double weight = nameAndWeight.length > 1 ? Double.parseDouble(nameAndWeight[1]) : 1.0;
+			bankRegistry.add(name, new File(DATA_PATH + BANK_PATH + name), weight);
 		}
-		
-		return substitutedTrees;
+		System.out.println("Loaded banks: " + bankRegistry.snapshot().banks);
+	}
+	
+	/**
+	 * The comebacks of the template made by applying up to <code>MAX_SUBSTITUTIONS</code>
+	 * substitutions one after another.  Only the limbs found for the template can ever
+	 * be valid, so they're all the search tries.
+	 */
+	private static Set<Tree> doSubstitutionsOnTree(FrankenTreeFactory factory, GenerationBudget budget) {
+		List<Tree> substitutions = Lists.newArrayList();
+		for (List<Tree> limbClass : factory.limbventory.limbClasses())
+			substitutions.addAll(limbClass);
+		SubstitutionSearch search = new SubstitutionSearch(RULES, MAX_SUBSTITUTIONS, SEQUENTIAL ? null : generationPool);
+		Set<Tree> ret = Sets.newLinkedHashSet();
+		for (SubstitutedTree substituted : search.search(factory.template, substitutions, budget))
+			ret.add(substituted.tree);
+		return ret;
 	}
 	
 //	private static class FrankenTreeFactory {
@@ -230,139 +264,19 @@ class ComebackGenerator {
 	
 	
 	/**
-	 * Generates all the trees which can be made by replacing any subtree <code>T</code> of <code>root</code>
-	 * with <code>substitution</code> under the following conditions:
+	 * Right now this just uses the following dumb rule (see <code>RULES</code>):
 	 * <ul>
-	 * <li> <code>T</code> is not a subtree of any substitution made before in <code>root</code>. This is to prevent nested substitutions.
-	 * <li> Replacing <code>T</code> with <code>substitution</code> is valid based on their structure
-	 * </ul>
-	 * 
-	 * @param root
-	 * 		The tree to apply substitutions on (may already have previous substitutions)
-	 * @param substitution
-	 * 		The substitution to apply
-	 * @return
-	 */
-	private static Set<SubstitutedTree> doSubstitutionOnTree(SubstitutedTree root, Tree substitution) {
-		Set<SubstitutedTree> substitutedTrees = Sets.newHashSet();
-		
-		List<Tree> nodes = root.nodes();
-		
-		int index = 0;
-		for (Tree node : nodes) {
-			if (!substitution.value().equals("NP") && !verbs.contains(substitution.value())) continue;
-			
-			boolean partOfExistingSub = false; // True if this node is a subtree of an existing substitution in Root
-			for (Tree prevSubstitution : root.substitutions) {
-				if (node.nodeNumber(prevSubstitution) != -1) {
-					partOfExistingSub = true;
-					break;
-				}
-			}
-			if (partOfExistingSub)
-				continue;
-			
-			if (isValidReplacement(node, substitution)) {
-				
-				Tree deepcopy = root.tree.deepCopy();
-				List<Tree> copiedNodes = deepcopy.preOrderNodeList();
-				Tree toReplace = copiedNodes.get(index);
-				Tree parent = toReplace.parent(deepcopy);
-				
-				// we can replace the whole root
-				if (parent == null) {
-					substitutedTrees.add(new SubstitutedTree(substitution, root.substitutions));
-					continue;
-				}
-				
-				int ci;
-				for (ci = 0; ci < parent.children().length; ci++) {
-					// find matching child index and replace it
-					if (parent.children()[ci] == toReplace) {
-						parent.setChild(ci, substitution);
-						break;
-					}
-				}
-				
-				Set<Tree> substitutionsOfCopy = Sets.newHashSet(root.substitutions);
-				substitutionsOfCopy.add(substitution);
-				substitutedTrees.add(new SubstitutedTree(deepcopy, substitutionsOfCopy));	
-			}
-			// gross, shouldn't have to do this nonsense...
-			index++;
-		}
-		return substitutedTrees;
-	}
-	
-	
-	/**
-	 * A Tree which has a set its subtrees replaced by trees from the substitution bank.
-	 * It also has easy references to its substitutions.
-	 * 
-	 * Also, the substitutions are shared among SubstitutedTrees. (Ie. You can have
-	 * trees A and B which have a common substitution C as a subtrees).
-	 * 
-	 * @author david
-	 *
-	 */
-	private static class SubstitutedTree {
-		public final Tree tree;
-		public final Set<Tree> substitutions;
-		public SubstitutedTree(Tree tree, Set<Tree> substitutions) {
-			this.tree = tree;
-			this.substitutions = substitutions;
-		}
-		public List<Tree> nodes() {
-			return tree.preOrderNodeList();
-		}
-		
-		@Override
-		public String toString() {
-			return tree.toString() + " with " + substitutions.size() + " substitutions";
-		}
-		
-	}	
-	
-	/**
-	 * Right now this just uses the following dumb rule:
-	 * <ul>
-	 * <li>The replacement tree must have the same structure as the tree being replaced.
-	 * <li>If two nodes in the same position are not leaves, they must have the same value UNLESS
-	 * 		they are verbs. If they are both verbs, then they just need to both be verbs.
+	 * <li>The replacement tree must have the same root label as the tree being replaced.
+	 * <li>If they are phrases (NP or VP), their first children must have the same label too.
 	 * 	   It's very questionable if this is too restrictive.
-	 * <li>If two nodes in the same position are leaves, they must have the same value if
-	 * 	   they both have a restricted value.
+	 * <li>Neither tree may contain a restricted word.
 	 * </ul> 
 	 * @param toReplace
 	 * @param replacement
 	 * @return
 	 */
 	private static boolean isValidReplacement(Tree toReplace, Tree replacement) {
-		if (toReplace.value().equals(replacement.value())) {
-		
-			if (toReplace.value().equals("VP") || toReplace.value().equals("NP")) {
-				if (!toReplace.firstChild().value().equals(replacement.firstChild().value()))
-					return false;
-			}
-			
-			boolean usesRestricted = false;
-			
-			// check to see if it doesn't contain restricted words
-			List<Word> toReplaceWords = toReplace.yieldWords();
-			for (Word word : toReplaceWords) {
-				if (restricted.contains(word.value()))
-					usesRestricted = true;
-			}
-			
-			List<Word> replacementWords = replacement.yieldWords();
-			for (Word word : replacementWords) {
-				if (restricted.contains(word.value()))
-					usesRestricted = true;
-			}
-			
-			return !usesRestricted;	
-		}
-		return false;
+		return RULES.isValid(toReplace, replacement);
 	}
 	
 	public interface TreeFn<T> {
@@ -374,92 +288,143 @@ class ComebackGenerator {
 	 * @param root
 	 * @param applyFn
 	 */
-	private static <T> void applyOnTree(Tree root, TreeFn<T> applyFn) {
-		Set<Tree> seen = Sets.newHashSet();
-    	Queue<Tree> q = new LinkedList<Tree>();
-    	q.add(root);
-		while (!q.isEmpty()) {
-			Tree curNode = q.remove();
-			applyFn.apply(curNode);
-			for (Tree child : curNode.getChildrenAsList()){
-				if (!seen.contains(child)){
-					q.add(child);
-					seen.add(child);
-				}
+	private static <T> void applyOnTree(Tree root, final TreeFn<T> applyFn) {
+		TreeIndex.of(root).breadthFirst(new TreeIndex.Visitor() {
+			@Override
+			public boolean visit(Tree node, int index, int depth) {
+				applyFn.apply(node);
+				return true;
 			}
-		}
+		});
 	}
 	
 	
-	private static void exploreTree(Tree root, PrintWriter out) {
+	private static void writeComeback(PrintWriter out, Tree original, Tree comeback) {
+		out.write("Comeback: " + comeback.yieldWords() + "\n");
+		if (YIELD_ONLY) {
+			out.write("\n");
+			return;
+		}
+		out.write("Original Tree: " + original + "\n");
+		out.write("Comeback Tree: " + comeback + "\n\n");
+	}
+	
+	private static void exploreTree(Tree root, final PrintWriter out) {
 		out.write("STARTING TREE EXPLORATION\n");
-		Set<Tree> seen = Sets.newHashSet();
-    	Queue<Tree> q = new LinkedList<Tree>();
-    	q.add(root);
-    	int i = 0;
-		while (!q.isEmpty()) {
-			Tree curNode = q.remove();
-			out.write("Node " + Integer.toString(i) + " has label " + curNode.label().toString() + " Phrasal? " + curNode.isPhrasal() + " Terminal? " + curNode.isLeaf() + "\n");
-			i++;
-			for (Tree child : curNode.getChildrenAsList()){
-				if (!seen.contains(child)){
-					q.add(child);
-					seen.add(child);
-				}
+		TreeIndex.of(root).breadthFirst(new TreeIndex.Visitor() {
+			private int i = 0;
+			
+			@Override
+			public boolean visit(Tree curNode, int index, int depth) {
+				out.write("Node " + Integer.toString(i) + " has label " + curNode.label().toString() + " Phrasal? " + curNode.isPhrasal() + " Terminal? " + curNode.isLeaf() + "\n");
+				i++;
+				return true;
 			}
-		}
+		});
 		out.write("DONE WITH TREE EXPLORATION\n");
 	}
 	
-	public static void main(String[] args) {
-		File startingDir = new File(DATA_INPUT_PATH);
-		List<File> files = Crawler.getFilesInDir(startingDir);
-		
-		// try building bank
-		try {
-			substitutionBank = buildSubstitutionBank();
-		} catch (IOException e1) {
-			e1.printStackTrace();
+	/**
+	 * Makes the comebacks of one sentence and writes them to <code>out</code>.
+	 * Returns the number written.
+	 */
+	static final SentenceFn<Long> GENERATE = new SentenceFn<Long>() {
+
+		@Override
+		public Long apply(String sentence) {
+			return null;
 		}
-		
-		for (File file : files) {
-			try {
-				processFile(file, new SentenceFn<Void>() {
 
+		@Override
+		public Long apply(String sentence, PrintWriter out) {
+			System.out.println("Creating comebacks for " + "\"" + sentence + "\"");
+			BankRegistry.Snapshot snapshot = bankRegistry.snapshot();
+			BankIndex bank = mappedBank == null ? snapshot : mappedBank;
+			
+			// samples are random, and the other modes write something else, so they skip the cache
+			ResultCache.Result cached = CACHE_RESULTS ? resultCache.get(sentence, bank.version(), RESULT_VERSION) : null;
+			if (cached != null) {
+				System.out.println("Number of comebacks cached: " + cached.comebacks.size());
+				System.out.println();
+				for (Tree comeback : cached.comebacks)
+					writeComeback(out, cached.parse, comeback);
+				return (long) cached.comebacks.size();
+			}
+			
+			// run this on the string itself!! this is better anyway
+			Tree parse = lp.apply(sentence);
+			FrankenTreeFactory factory = new FrankenTreeFactory(parse);
+			factory.buildLimbventory(compact(bank), RULES, limbventoryCache);
+			
+			SearchSpace space = factory.searchSpace();
+			System.out.println("Number of possible comebacks: " + space);
+			GenerationBudget budget = factory.newBudget().withDeadline(DEADLINE_MILLIS);
+			
+			if (EXPLAIN) {
+				System.out.print(factory.explain());
+				System.out.println();
+				return 0L;
+			}
+			
+			if (YIELD_ONLY && SAMPLE_SIZE <= 0 && MAX_SUBSTITUTIONS <= 0) {
+				final PrintWriter output = out;
+				GenerationBudget yieldBudget = new GenerationBudget(STREAM_LIMIT).withDeadline(DEADLINE_MILLIS);
+				long written = factory.recipeBook().forEachYield(new RecipeBook.YieldFn() {
 					@Override
-					public Void apply(String sentence) {
-						return null;
+					public void apply(List<String> words) {
+						output.write("Comeback: " + words + "\n\n");
 					}
-
-					@Override
-					public Void apply(String sentence, PrintWriter out) {
-						// run this on the string itself!! this is better anyway
-						Tree parse = lp.apply(sentence);
-						
-						System.out.println("Creating comebacks for " + "\"" + sentence + "\"");
-						FrankenTreeFactory factory = new FrankenTreeFactory(parse);
-						
-						factory.buildLimbventory(substitutionBank, new FrankenTreeFactory.ValidReplacementFn() {
-							
-							@Override
-							public boolean isValid(Tree toReplace, Tree replacement) {
-								return isValidReplacement(toReplace, replacement);
-							}
-						});
-						
-						Set<Tree> comebacks = factory.generateAllFrankenTrees();
-						
-						System.out.println("Number of comebacks generated: " + comebacks.size());
-						System.out.println();
-						
-						for (Tree comeback : comebacks) {
-							out.write("Comeback: " + comeback.yieldWords() + "\n");
-							out.write("Original Tree: " + parse + "\n");
-							out.write("Comeback Tree: " + comeback + "\n\n");
+				}, yieldBudget);
+				System.out.println("Number of comebacks written: " + written);
+				if (yieldBudget.isTruncated())
+					System.out.println("Truncated: " + yieldBudget);
+				System.out.println();
+				return written;
+			}
+			
+			if (SAMPLE_SIZE <= 0 && MAX_SUBSTITUTIONS <= 0 && space.size() > budget.maxResults() && space.size() <= STREAM_LIMIT) {
+				// too many to hold at once, so they're de-duplicated on disk and written out afterwards
+				final Tree original = parse;
+				final PrintWriter output = out;
+				GenerationBudget streamBudget = new GenerationBudget(STREAM_LIMIT).withDeadline(DEADLINE_MILLIS);
+				ExternalDedup dedup = new ExternalDedup(SPILL_THRESHOLD, SPILL_DIR == null ? null : new File(SPILL_DIR));
+				long written = 0;
+				try {
+					written = factory.spillAllFrankenTrees(new FrankenTreeFactory.ComebackFn() {
+						@Override
+						public void apply(Tree comeback) {
+							writeComeback(output, original, comeback);
 						}
-						
+					}, streamBudget, dedup);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				if (dedup.spilled() > 0)
+					System.out.println("Spilled " + dedup.spilled() + " comebacks to disk for de-duplication");
+				System.out.println("Number of comebacks streamed: " + written);
+				if (streamBudget.isTruncated())
+					System.out.println("Truncated: " + streamBudget);
+				System.out.println();
+				return written;
+			}
+			
+			Set<Tree> comebacks = SAMPLE_SIZE > 0
+					? factory.sampleFrankenTrees(SAMPLE_SIZE, new Random(), snapshot.weights())
+					: MAX_SUBSTITUTIONS > 0 ? doSubstitutionsOnTree(factory, budget)
+					: SEQUENTIAL ? factory.generateAllFrankenTrees(budget) : factory.generateAllFrankenTrees(generationPool, budget);
+			
+			System.out.println("Number of comebacks generated: " + comebacks.size());
+			if (budget.isTruncated())
+				System.out.println("Truncated: " + budget);
+			else if (CACHE_RESULTS)
+				resultCache.put(sentence, bank.version(), RESULT_VERSION, parse, comebacks);
+			System.out.println();
+			
+			for (Tree comeback : comebacks)
+				writeComeback(out, parse, comeback);
+			
 //						factory.buildLimbventory(substitutionBank);
-						
+			
 //						factory.
 //						
 //						
@@ -489,7 +454,7 @@ class ComebackGenerator {
 //							}
 //							System.out.format("root: %s key: %s num comebacks: %d\n", sentence, key, comebacks.size());
 //						}
-						
+			
 //						exploreTree(parse, out);
 //						
 //						parse.pennPrint(out);
@@ -502,15 +467,68 @@ class ComebackGenerator {
 //						TreePrint tp = new TreePrint("penn,typedDependenciesCollapsed");
 //						tp.printTree(parse, out);
 //						return parse;
-						
-						return null;
+			
+			return (long) comebacks.size();
+		}
+	};
+	
+	public static void main(String[] args) {
+		File startingDir = new File(DATA_INPUT_PATH);
+		List<File> files = Crawler.getFilesInDir(startingDir);
+		System.out.println("Parser model: " + PARSER_MODEL);
+		
+		if (SHARDS > 0 && WORKER_OF == null) {
+			// the workers load their own banks
+			try {
+				ShardedRun.coordinate(files, SHARDS, WORKERS, new File(SHARD_DIR), new Function<File, File>() {
+					@Override
+					public File apply(File input) {
+						return outputFile(input);
 					}
 				});
 			} catch (IOException e) {
-				// TODO Auto-generated catch block
 				e.printStackTrace();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+			return;
+		}
+		
+		// try building bank
+		try {
+			if (MAPPED_BANK != null)
+				mappedBank = MappedBankStore.open(new File(MAPPED_BANK));
+			else
+				loadBanks();
+		} catch (IOException e1) {
+			e1.printStackTrace();
+		}
+		bankRegistry.startWatching(BANK_RELOAD_MILLIS);
+		BankIndex startingBank = mappedBank == null ? bankRegistry.snapshot() : mappedBank;
+		int evicted = resultCache.evictStale(startingBank.version(), RESULT_VERSION);
+		if (evicted > 0)
+			System.out.println("Evicted " + evicted + " cached results made with other banks or rules");
+		
+		if (WORKER_OF != null) {
+			try {
+				int shards = ShardedRun.work(new File(WORKER_OF), GENERATE, System.out);
+				System.out.println("Shards run: " + shards);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		} else {
+			for (File file : files) {
+				try {
+					processFile(file, GENERATE);
+				} catch (IOException e) {
+					// TODO Auto-generated catch block
+					e.printStackTrace();
+				}
 			}
 		}
+		bankRegistry.stopWatching();
+		System.out.println("Limbventory cache: " + limbventoryCache.stats());
+		System.out.println("Result cache: " + resultCache);
 		
 		//LexicalizedParser lp = LexicalizedParser.loadModel(ENGLISH_PCFG_PATH); //<--TODO path to grammar goes here
 		
@@ -0,0 +1,166 @@
+package comeback;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import util.SymbolTable;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * A bank with its trees grouped into equivalence classes: trees with the same
+ * {@link ReplacementRules.Signature} (root label, first child label and whether they
+ * use a restricted word) are accepted or rejected by the rules together, so a
+ * template node only has to be checked against one tree of each class.
+ *
+ * Structurally equal trees (eg. the same phrase in two banks) are merged within
+ * their class, so the multiplicity of a class is the number of distinct limbs it
+ * stands for.
+ *
+ * A template node's limbventory keeps the classes it accepts as classes, so the search
+ * space is counted, sampled and walked over classes with their multiplicities, and a
+ * class is only expanded to its members when comebacks are written out (see
+ * {@link Limbventory} and {@link RecipeBook}).
+ *
+ * Classes are worked out per root label (and first child label) the first time
+ * they're asked for, and kept in a cache bounded by the number of trees they hold.
+ * Don't wrap a bank like {@link MappedBankStore} that is read lazily to save heap: the
+ * classes would keep the trees it read.
+ *
+ * @author david
+ *
+ */
+public class CompactBank implements BankIndex {
+
+	/**
+	 * Bank trees which are interchangeable as far as the rules can tell
+	 */
+	public static final class LimbClass {
+		public final ReplacementRules.Signature signature;
+		public final ImmutableSet<Tree> members;
+
+		LimbClass(ReplacementRules.Signature signature, ImmutableSet<Tree> members) {
+			this.signature = signature;
+			this.members = members;
+		}
+
+		/**
+		 * The tree to check the rules against on behalf of the whole class
+		 */
+		public Tree representative() {
+			return members.iterator().next();
+		}
+
+		public int multiplicity() {
+			return members.size();
+		}
+
+		@Override
+		public String toString() {
+			return representative() + " x" + multiplicity();
+		}
+	}
+
+	private static final String ANY_FIRST_CHILD = "";	// key for lookups without a first child label
+	private static final long CACHED_TREES = 1000000;		// members of the classes kept
+
+	private final BankIndex bank;
+	private final ReplacementRules rules;
+	private final Cache<List<String>, ImmutableList<LimbClass>> classes;	// [root label, first child label] -> classes
+
+	public CompactBank(BankIndex bank, ReplacementRules rules) {
+		this(bank, rules, CACHED_TREES);
+	}
+
+	/**
+	 * @param cachedTrees
+	 * 		most trees to keep in classes worked out so far
+	 */
+	public CompactBank(BankIndex bank, ReplacementRules rules, long cachedTrees) {
+		this.bank = bank;
+		this.rules = rules;
+		this.classes = CacheBuilder.newBuilder()
+				.maximumWeight(cachedTrees)
+				.weigher(new Weigher<List<String>, ImmutableList<LimbClass>>() {
+					@Override
+					public int weigh(List<String> key, ImmutableList<LimbClass> classes) {
+						int ret = 1;
+						for (LimbClass limbClass : classes)
+							ret += limbClass.multiplicity();
+						return ret;
+					}
+				})
+				.build();
+	}
+
+	/**
+	 * The classes of the trees <code>bank.candidates(rootLabel, firstChildLabel)</code> would return
+	 */
+	public ImmutableList<LimbClass> classes(final String rootLabel, final String firstChildLabel) {
+		List<String> key = ImmutableList.of(rootLabel, firstChildLabel == null ? ANY_FIRST_CHILD : firstChildLabel);
+		try {
+			return classes.get(key, new Callable<ImmutableList<LimbClass>>() {
+				@Override
+				public ImmutableList<LimbClass> call() {
+					return compact(bank.candidates(rootLabel, firstChildLabel));
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	private ImmutableList<LimbClass> compact(Iterable<Tree> trees) {
+		Map<List<Object>, ReplacementRules.Signature> signatures = Maps.newLinkedHashMap();
+		Map<List<Object>, ImmutableSet.Builder<Tree>> members = Maps.newLinkedHashMap();
+		for (Tree tree : trees) {
+			ReplacementRules.Signature signature = rules.signature(tree);
+			// words aren't interned, so a preterminal's first child is told apart by its word
+			Object firstChild = signature.firstChild == SymbolTable.NO_SYMBOL && !tree.isLeaf()
+					? tree.firstChild().value() : signature.firstChild;
+			List<Object> key = Lists.<Object>newArrayList(signature.label, firstChild, signature.restricted);
+			ImmutableSet.Builder<Tree> builder = members.get(key);
+			if (builder == null) {
+				builder = ImmutableSet.builder();
+				members.put(key, builder);
+				signatures.put(key, signature);
+			}
+			builder.add(tree);
+		}
+		ImmutableList.Builder<LimbClass> ret = ImmutableList.builder();
+		for (Map.Entry<List<Object>, ImmutableSet.Builder<Tree>> entry : members.entrySet())
+			ret.add(new LimbClass(signatures.get(entry.getKey()), entry.getValue().build()));
+		return ret.build();
+	}
+
+	@Override
+	public Iterable<Tree> candidates(String rootLabel, String firstChildLabel) {
+		List<Iterable<Tree>> ret = Lists.newArrayList();
+		for (LimbClass limbClass : classes(rootLabel, firstChildLabel))
+			ret.add(limbClass.members);
+		return Iterables.concat(ret);
+	}
+
+	/**
+	 * Same as the wrapped bank's, since the classes are worked out from it and the rules
+	 */
+	@Override
+	public long version() {
+		return bank.version();
+	}
+
+	public ReplacementRules rules() {
+		return rules;
+	}
+}
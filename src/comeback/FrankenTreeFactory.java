@@ -1,64 +1,580 @@
 package comeback;
 
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
+import util.ExternalDedup;
+import util.Fingerprints;
+import util.Iterators;
+import util.TreeIndex;
 import util.Iterators.CartesianCollectionIterable;
-import util.Iterators.PowerSetIterable;
 
+import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
 
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.PennTreeReader;
 import edu.stanford.nlp.trees.Tree;
 
 public class FrankenTreeFactory {
 	// Constants 
-	private static final int ITERATION_LIMIT = 60000;
 	private static final int POWERSET_LIMIT = 10000000;
+	private static final long SAMPLE_SEED = 0x5eedL;				// so over-limit sentences sample the same comebacks every run
 	
 	// 
 	public Tree template;
 	public List<Tree> templateNodes; 								// template nodes in a preOrderList
-	public Map<Tree,Integer> nodeToIndex = Maps.newHashMap();		// map from node to index in list	
+	public final TreeIndex templateIndex;							// finds a node's index by identity
 	
-	List<Set<Tree>> limbventory = Lists.newArrayList();
+	Limbventory limbventory;
+	private SearchSpace searchSpace;								// of searchSpaceOf, made on first use
+	private Limbventory searchSpaceOf;
 	
 	public FrankenTreeFactory (Tree template) {
 		this.template = template;
-		this.templateNodes = template.preOrderNodeList();
-		this.nodeToIndex = buildNodeToIndexMap();
-		this.limbventory = buildEmptyLimbventory();
+		this.templateIndex = TreeIndex.of(template);
+		this.templateNodes = templateIndex.nodes();
+		this.limbventory = Limbventory.empty(templateNodes.size());
 	}
 
+	/**
+	 * Generates every comeback, within a budget sized from the free heap.
+	 * @return
+	 */
 	public Set<Tree> generateAllFrankenTrees() {
-		ImmutableList<Tree> immTemplateNodes = ImmutableList.<Tree>builder().addAll(templateNodes).build();
-		PowerSetIterable<Tree> pit = new PowerSetIterable<Tree>(immTemplateNodes);
-		if (pit.size() > POWERSET_LIMIT) {
-			System.out.println("POWERSET LIMIT EXCEEDED " + " size: " + pit.size());
-			return Sets.newHashSet();
+		return generateAllFrankenTrees(newBudget());
+	}
+	
+	/**
+	 * A budget sized for this template from the heap that's free right now
+	 */
+	public GenerationBudget newBudget() {
+		return GenerationBudget.forTemplate(templateNodes.size());
+	}
+	
+	/**
+	 * Generates every comeback when there are at most <code>budget.maxResults()</code> of them.
+	 * Bigger spaces (or ones with too many substitution sets to walk) get that many
+	 * uniform samples instead.  If the heap runs low on the way the result is truncated;
+	 * <code>budget</code> says how much was dropped.
+	 * 
+	 * Substitution sets are only made from nodes which have limbs; a set with a node
+	 * that can't be replaced makes the same trees as the set without it.
+	 * @return
+	 */
+	public Set<Tree> generateAllFrankenTrees(final GenerationBudget budget) {
+		int[] sites = replaceableSites();
+		Set<Tree> overLimit = sampleIfOverLimits(powersetSize(sites), budget);
+		if (overLimit != null)
+			return overLimit;
+		
+		final Set<Tree> ret = Sets.newHashSet();
+		enumerateFrankenTrees(sites, new ComebackFn() {
+			@Override
+			public void apply(Tree comeback) {
+				if (!ret.contains(comeback) && budget.admit())
+					ret.add(comeback);
+			}
+		}, budget);
+		if (budget.isExhausted())
+			budget.settle(searchSpace().size());
+		return ret;
+	}
+	
+	public interface ComebackFn {
+		public void apply(Tree comeback);
+	}
+	
+	/**
+	 * Hands every comeback to <code>fn</code> once, without keeping them in the heap:
+	 * duplicates are removed by <code>dedup</code>, which spills to disk, so memory doesn't
+	 * grow with the number of comebacks.  Nothing is handed to <code>fn</code> until every
+	 * comeback has been made, and then they come in fingerprint order.  Stops early if
+	 * <code>budget</code> runs out or the heap runs low; <code>budget</code> also counts a
+	 * comeback made again after its first copy was spilled, so it can run out a little early.
+	 * 
+	 * @return the number of comebacks handed out
+	 */
+	public long spillAllFrankenTrees(final ComebackFn fn, final GenerationBudget budget, final ExternalDedup dedup) throws IOException {
+		try {
+			produceAllFrankenTrees(new ComebackFn() {
+				@Override
+				public void apply(Tree comeback) {
+					try {
+						if (budget.isExhausted()) return;
+						if (dedup.add(Fingerprints.of(comeback), comeback.toString()))
+							budget.admit();
+					} catch (IOException e) {
+						throw new SpillFailure(e);
+					}
+				}
+			}, budget);
+			return dedup.finish(new ExternalDedup.RecordFn() {
+				@Override
+				public void apply(long fingerprint, String record) {
+					try {
+						fn.apply(readTree(record));
+					} catch (IOException e) {
+						throw new SpillFailure(e);
+					}
+				}
+			});
+		} catch (SpillFailure e) {
+			throw e.getCause();
+		} finally {
+			dedup.delete();
+		}
+	}
+	
+	/**
+	 * Carries an IOException out of a <code>ComebackFn</code>
+	 */
+	private static final class SpillFailure extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		public SpillFailure(IOException cause) {
+			super(cause);
+		}
+		
+		@Override
+		public IOException getCause() {
+			return (IOException) super.getCause();
+		}
+	}
+	
+	/**
+	 * Tree.valueOf would normalize labels (eg. NP-TMP becomes NP), read them back exactly
+	 */
+	private static Tree readTree(String s) throws IOException {
+		return new PennTreeReader(new StringReader(s), new LabeledScoredTreeFactory()).readTree();
+	}
+	
+	/**
+	 * Hands every comeback (duplicates included) to <code>fn</code>, or uniform samples
+	 * when there are too many substitution sets to walk, and settles <code>budget</code>
+	 * if it didn't cover the space.
+	 */
+	private void produceAllFrankenTrees(ComebackFn fn, GenerationBudget budget) {
+		int[] sites = replaceableSites();
+		long powersetSize = powersetSize(sites);
+		if (powersetSize > POWERSET_LIMIT) {
+			System.out.println("POWERSET LIMIT EXCEEDED " + " size: " + powersetSize + ", sampling instead");
+			SearchSpace space = searchSpace();
+			Random rng = new Random(SAMPLE_SEED);
+			for (long i=0; i<budget.maxResults() && space.size() > 0 && !budget.isExhausted(); i++)
+				fn.apply(buildFrankenTree(space.sample(rng)));
+		} else {
+			enumerateFrankenTrees(sites, fn, budget);
+		}
+		if (budget.isExhausted() || powersetSize > POWERSET_LIMIT)
+			budget.settle(searchSpace().size());
+	}
+	
+	/**
+	 * Builds the tree for every valid substitution set and every point of its Cartesian
+	 * product and hands it to <code>fn</code> (duplicates included), until <code>budget</code>
+	 * is exhausted.
+	 * 
+	 * Substitution sets are bit masks over <code>sites</code> (there are few enough
+	 * to walk, see <code>sampleIfOverLimits</code>).  Each set is walked over its sites'
+	 * limb classes, and each tuple of classes is only expanded to its members when its
+	 * trees are built.  Limbs are read straight from the limbventory, and one replacement
+	 * list is reused for every comeback, so walking a substitution set allocates nothing
+	 * but the trees it makes.
+	 */
+	private void enumerateFrankenTrees(int[] sites, ComebackFn fn, GenerationBudget budget) {
+		Limbventory limbs = limbventory;
+		List<Tree> replacements = Lists.newArrayList(Collections.<Tree>nCopies(templateNodes.size(), null));
+		int[] members = new int[sites.length];			// template nodes of the current set
+		int[] classes = new int[sites.length];			// limb class used at each member
+		int[] digits = new int[sites.length];			// limb of that class used at each member
+		
+		for (long mask=1; mask < 1L << sites.length; mask++) {
+			if (budget.isExhausted()) return;
+			
+			// in pre-order, a site before the end of the previous member's subtree is under it
+			int size = 0;
+			int subtreeEnd = 0;
+			boolean valid = true;
+			for (int k=0; k<sites.length && valid; k++) {
+				if ((mask & (1L << k)) == 0) continue;
+				valid = sites[k] >= subtreeEnd;
+				subtreeEnd = templateIndex.end(sites[k]);
+				members[size++] = sites[k];
+			}
+			if (!valid) continue;
+			
+			for (int m=0; m<size; m++)
+				classes[m] = 0;
+			// odometer over the members' classes, and for each tuple over their limbs, the last member fastest
+			int m;
+			do {
+				for (m=0; m<size; m++) {
+					digits[m] = 0;
+					replacements.set(members[m], limbs.members(members[m], classes[m]).get(0));
+				}
+				do {
+					if (budget.isExhausted()) return;
+					fn.apply(buildFrankenTree(replacements));
+					for (m=size-1; m>=0; m--) {
+						List<Tree> limbClass = limbs.members(members[m], classes[m]);
+						if (++digits[m] < limbClass.size()) {
+							replacements.set(members[m], limbClass.get(digits[m]));
+							break;
+						}
+						digits[m] = 0;
+						replacements.set(members[m], limbClass.get(0));
+					}
+				} while (m >= 0);
+				for (m=size-1; m>=0; m--) {
+					if (++classes[m] < limbs.classCount(members[m]))
+						break;
+					classes[m] = 0;
+				}
+			} while (m >= 0);
+			for (m=0; m<size; m++)
+				replacements.set(members[m], null);
+		}
+	}
+	
+	/**
+	 * Samples instead when there are too many substitution sets or comebacks to enumerate.
+	 * @return the samples, or null if the space is small enough to enumerate
+	 */
+	private Set<Tree> sampleIfOverLimits(long powersetSize, GenerationBudget budget) {
+		SearchSpace space = searchSpace();
+		if (powersetSize > POWERSET_LIMIT) {
+			System.out.println("POWERSET LIMIT EXCEEDED " + " size: " + powersetSize + ", sampling instead");
+		} else if (space.size() > budget.maxResults()) {
+			System.out.println("ITERATION LIMIT EXCEEDED " + " size: " + space + ", sampling instead");
+		} else {
+			return null;
 		}
 		Set<Tree> ret = Sets.newHashSet();
-		for (List<Tree> set : pit) {
+		Random rng = new Random(SAMPLE_SEED);
+		for (long i=0; i<budget.maxResults() && space.size() > 0 && !budget.isExhausted(); i++) {
+			Tree comeback = buildFrankenTree(space.sample(rng));
+			if (!ret.contains(comeback) && budget.admit())
+				ret.add(comeback);
+		}
+		budget.settle(space.size());
+		return ret;
+	}
+	
+	private static long powersetSize(int[] sites) {
+		return sites.length >= 63 ? Long.MAX_VALUE : 1L << sites.length;
+	}
+	
+	/**
+	 * Pre-order indices of the template nodes which have at least one limb
+	 */
+	private int[] replaceableSites() {
+		List<Integer> sites = Lists.newArrayList();
+		for (int i=0; i<templateNodes.size(); i++)
+			if (limbventory.count(i) > 0)
+				sites.add(i);
+		return Ints.toArray(sites);
+	}
+	
+	/**
+	 * Same as <code>generateAllFrankenTrees()</code>, but the work is split across
+	 * <code>pool</code>: first by ranges of substitution sets, then big Cartesian products
+	 * by ranges of their class tuples, then big class tuples by ranges of their members.
+	 * 
+	 * Every tree is tagged with the (substitution set, class tuple, member) that first made it, and
+	 * duplicates keep the smallest tag, so the result (and its iteration order) is the same
+	 * however the work was scheduled.
+	 * 
+	 * @param pool
+	 * @return
+	 */
+	public Set<Tree> generateAllFrankenTrees(ForkJoinPool pool) {
+		return generateAllFrankenTrees(pool, newBudget());
+	}
+	
+	public Set<Tree> generateAllFrankenTrees(ForkJoinPool pool, GenerationBudget budget) {
+		int[] sites = replaceableSites();
+		long powersetSize = powersetSize(sites);
+		Set<Tree> overLimit = sampleIfOverLimits(powersetSize, budget);
+		if (overLimit != null)
+			return overLimit;
+		
+		ParallelGeneration generation = new ParallelGeneration(recipeBook(), budget);
+		pool.invoke(generation.new SubsetTask(0, powersetSize));
+		if (budget.isExhausted())
+			budget.settle(searchSpace().size());
+		return generation.result();
+	}
+	
+	/**
+	 * Shared state of one parallel generation
+	 */
+	private class ParallelGeneration {
+		private static final int SUBSET_CHUNK = 1024;		// substitution sets per task
+		private static final int POINT_CHUNK = 256;			// comebacks per task
+		
+		private final RecipeBook book;
+		private final ConcurrentMap<Tree, Tag> seen = new ConcurrentHashMap<Tree, Tag>();
+		private final GenerationBudget budget;
+		
+		public ParallelGeneration(RecipeBook book, GenerationBudget budget) {
+			this.book = book;
+			this.budget = budget;
+		}
+		
+		/**
+		 * Builds the tree for choice <code>member</code> of the members of <code>classes</code>,
+		 * class tuple <code>tuple</code> of the sites in <code>mask</code>
+		 */
+		private void build(long mask, long tuple, Recipe classes, long member) {
+			Tree tree = book.build(book.member(classes, member));
+			Tag tag = new Tag(mask, tuple, member);
+			Tag old = seen.putIfAbsent(tree, tag);
+			if (old == null && !budget.admit()) {
+				// another thread may have put a smaller tag in since, and then the tree stays
+				seen.remove(tree, tag);
+				return;
+			}
+			while (old != null && tag.compareTo(old) < 0 && !seen.replace(tree, old, tag))
+				old = seen.get(tree);
+		}
+		
+		public Set<Tree> result() {
+			List<Map.Entry<Tree, Tag>> entries = Lists.newArrayList(seen.entrySet());
+			Collections.sort(entries, new Comparator<Map.Entry<Tree, Tag>>() {
+				@Override
+				public int compare(Map.Entry<Tree, Tag> a, Map.Entry<Tree, Tag> b) {
+					return a.getValue().compareTo(b.getValue());
+				}
+			});
+			Set<Tree> ret = Sets.newLinkedHashSet();
+			for (Map.Entry<Tree, Tag> entry : entries)
+				ret.add(entry.getKey());
+			return ret;
+		}
+		
+		/**
+		 * Walks the substitution sets <code>[from, to)</code>
+		 */
+		private class SubsetTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
 			
-			if (!isValidReplacementList(set)) continue;
+			private final long from;
+			private final long to;
 			
-			// make limbventory
-			List<Set<Tree>> relevantLimbventory = Lists.<Set<Tree>>newArrayList();
-			for (int i=0; i<set.size(); i++){
-				Set<Tree> limbs = Sets.newHashSet();
-				if (set.get(i) != null)
-					limbs.addAll(limbventory.get(i));
-				relevantLimbventory.add(limbs);
+			public SubsetTask(long from, long to) {
+				this.from = from;
+				this.to = to;
+			}
+			
+			@Override
+			protected void compute() {
+				if (to - from > SUBSET_CHUNK) {
+					long mid = from + (to - from) / 2;
+					invokeAll(new SubsetTask(from, mid), new SubsetTask(mid, to));
+					return;
+				}
+				List<RecursiveAction> big = Lists.newArrayList();
+				for (long mask = Math.max(from, 1); mask < to; mask++) {
+					if (budget.isExhausted()) return;
+					if (!book.isValid(mask)) continue;
+					long size = book.size(mask);
+					long tuples = book.classTuples(mask);
+					if (size > POINT_CHUNK)
+						big.add(new PointTask(mask, 0, tuples, size / tuples));
+					else
+						for (long tuple=0; tuple<tuples; tuple++)
+							buildMembers(mask, tuple, big);
+				}
+				invokeAll(big);
 			}
-			ImmutableList<Set<Tree>> immRelevantLimbventory = ImmutableList.<Set<Tree>>builder()
-					.addAll(relevantLimbventory)
-					.build();
-			ret.addAll(buildFrankenTreesAnatomically(immRelevantLimbventory));
 		}
+		
+		/**
+		 * Builds the members of class tuple <code>tuple</code> of <code>mask</code>, or adds a
+		 * task for them to <code>big</code> if there are many
+		 */
+		private void buildMembers(long mask, long tuple, List<RecursiveAction> big) {
+			Recipe classes = book.recipe(mask, tuple);
+			long multiplicity = book.multiplicity(classes);
+			if (multiplicity > POINT_CHUNK) {
+				big.add(new MemberTask(mask, tuple, classes, 0, multiplicity));
+				return;
+			}
+			for (long member=0; member<multiplicity && !budget.isExhausted(); member++)
+				build(mask, tuple, classes, member);
+		}
+		
+		/**
+		 * Builds the class tuples <code>[from, to)</code> of one substitution set's Cartesian product
+		 */
+		private class PointTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			
+			private final long mask;
+			private final long from;
+			private final long to;
+			private final long perTuple;			// comebacks per class tuple, on average
+			
+			public PointTask(long mask, long from, long to, long perTuple) {
+				this.mask = mask;
+				this.from = from;
+				this.to = to;
+				this.perTuple = Math.max(perTuple, 1);
+			}
+			
+			@Override
+			protected void compute() {
+				if (to - from > 1 && Iterators.saturatedMultiply(to - from, perTuple) > POINT_CHUNK) {
+					long mid = from + (to - from) / 2;
+					invokeAll(new PointTask(mask, from, mid, perTuple), new PointTask(mask, mid, to, perTuple));
+					return;
+				}
+				List<RecursiveAction> big = Lists.newArrayList();
+				for (long tuple=from; tuple<to && !budget.isExhausted(); tuple++)
+					buildMembers(mask, tuple, big);
+				invokeAll(big);
+			}
+		}
+		
+		/**
+		 * Builds the members <code>[from, to)</code> of one class tuple
+		 */
+		private class MemberTask extends RecursiveAction {
+			private static final long serialVersionUID = 1L;
+			
+			private final long mask;
+			private final long tuple;
+			private final Recipe classes;
+			private final long from;
+			private final long to;
+			
+			public MemberTask(long mask, long tuple, Recipe classes, long from, long to) {
+				this.mask = mask;
+				this.tuple = tuple;
+				this.classes = classes;
+				this.from = from;
+				this.to = to;
+			}
+			
+			@Override
+			protected void compute() {
+				if (to - from > POINT_CHUNK) {
+					long mid = from + (to - from) / 2;
+					invokeAll(new MemberTask(mask, tuple, classes, from, mid), new MemberTask(mask, tuple, classes, mid, to));
+					return;
+				}
+				for (long member=from; member<to && !budget.isExhausted(); member++)
+					build(mask, tuple, classes, member);
+			}
+		}
+	}
+	
+	/**
+	 * Where a tree was first made in a parallel generation
+	 */
+	private static final class Tag implements Comparable<Tag> {
+		public final long mask;
+		public final long tuple;
+		public final long member;
+		
+		public Tag(long mask, long tuple, long member) {
+			this.mask = mask;
+			this.tuple = tuple;
+			this.member = member;
+		}
+		
+		@Override
+		public int compareTo(Tag other) {
+			if (mask != other.mask)
+				return mask < other.mask ? -1 : 1;
+			if (tuple != other.tuple)
+				return tuple < other.tuple ? -1 : 1;
+			if (member != other.member)
+				return member < other.member ? -1 : 1;
+			return 0;
+		}
+	}
+	
+	/**
+	 * How big the search space is and why, without generating anything
+	 */
+	public SpaceExplanation explain() {
+		return new SpaceExplanation(this, POWERSET_LIMIT, newBudget());
+	}
+	
+	/**
+	 * For writing this template's comebacks down as recipes.  Made from the current
+	 * limbventory, so get a new one after rebuilding it.
+	 */
+	public RecipeBook recipeBook() {
+		return new RecipeBook(this);
+	}
+	
+	/**
+	 * The space of comebacks this template can make with the current limbventory.
+	 * Worked out once per limbventory.
+	 */
+	public SearchSpace searchSpace() {
+		if (searchSpaceOf != limbventory) {
+			searchSpace = new SearchSpace(template, limbventory);
+			searchSpaceOf = limbventory;
+		}
+		return searchSpace;
+	}
+	
+	/**
+	 * Same as <code>searchSpace()</code>, but sampling favours limbs with bigger weights.
+	 */
+	public SearchSpace searchSpace(Function<Tree, Double> weights) {
+		return new SearchSpace(template, limbventory, weights);
+	}
+	
+	/**
+	 * Exact number of comebacks, saturating at <code>Long.MAX_VALUE</code>.
+	 */
+	public long countFrankenTrees() {
+		return searchSpace().size();
+	}
+	
+	/**
+	 * Draws <code>n</code> comebacks uniformly at random (with replacement, so
+	 * the set can have fewer than <code>n</code>) without enumerating the space.
+	 * @param n
+	 * @param rng
+	 * @return
+	 */
+	public Set<Tree> sampleFrankenTrees(int n, Random rng) {
+		return sampleFrankenTrees(n, rng, null);
+	}
+	
+	/**
+	 * Same as <code>sampleFrankenTrees(n, rng)</code>, but each comeback is drawn with probability
+	 * proportional to the product of its limbs' weights.  Null weights sample uniformly.
+	 */
+	public Set<Tree> sampleFrankenTrees(int n, Random rng, Function<Tree, Double> weights) {
+		SearchSpace space = searchSpace(weights);
+		Set<Tree> ret = Sets.newHashSet();
+		if (space.size() == 0)
+			return ret;
+		for (int i=0; i<n; i++)
+			ret.add(buildFrankenTree(space.sample(rng)));
 		return ret;
 	}
 	
@@ -69,17 +585,13 @@ public class FrankenTreeFactory {
 	 */
 	public boolean isValidReplacementList(List<Tree> replacementList) {
 		Preconditions.checkArgument(replacementList.size() == templateNodes.size());
+		// in pre-order, nodes after i and inside its subtree are its descendants
+		int subtreeEnd = 0;
 		for (int i=0; i<replacementList.size(); i++) {
-			Tree cur = replacementList.get(i);
-			if (cur == null) continue;
-			for (int j=0; j<i; j++) {
-				Tree pred = replacementList.get(j);
-				
-				if (pred == null) continue;
-				
-				if (cur.parent(pred) != null)
-					return false;
-			}
+			if (replacementList.get(i) == null) continue;
+			if (i < subtreeEnd)
+				return false;
+			subtreeEnd = templateIndex.end(i);
 		}
 		return true;
 	}
@@ -93,7 +605,7 @@ public class FrankenTreeFactory {
 	 * 	   / \							  <br>
 	 * 	  B   C							  <br>
 	 * 
-	 * So <code>nodeToIndex[A] = 0, nodeToIndex[B] = 1, nodeToIndex[C] = 2</code> <br>
+	 * So <code>templateIndex.indexOf(A) = 0, templateIndex.indexOf(B) = 1, templateIndex.indexOf(C) = 2</code> <br>
 	 * 
 	 * Given anatomicalLocations = {false, true, true}, and given that B can be replaced by {D,E} and C can be replaced by {F,G},
 	 * the output should be <br>
@@ -107,77 +619,72 @@ public class FrankenTreeFactory {
 	 * @return
 	 */
 	public Set<Tree> buildFrankenTreesAnatomically(ImmutableList<Set<Tree>> relevantLimbventory) {
+		return buildFrankenTreesAnatomically(relevantLimbventory, newBudget());
+	}
+	
+	public Set<Tree> buildFrankenTreesAnatomically(ImmutableList<Set<Tree>> relevantLimbventory, GenerationBudget budget) {
 		Preconditions.checkArgument(relevantLimbventory.size() == templateNodes.size());
 		CartesianCollectionIterable<Tree> replacements = new CartesianCollectionIterable<Tree>(relevantLimbventory);
 		
 		Set<Tree> ret = Sets.newHashSet();
-		if (replacements.size() > ITERATION_LIMIT) {
+		if (replacements.size() > budget.maxResults()) {
 			System.out.println("ITERATION LIMIT EXCEEDED");
+			budget.drop(replacements.size());
 			return ret;
 		}
 		
-		for (List<Tree> replacement : replacements)
-			ret.add(buildFrankenTree(replacement));
-		
+		for (List<Tree> replacement : replacements) {
+			if (budget.isExhausted()) break;
+			Tree comeback = buildFrankenTree(replacement);
+			if (!ret.contains(comeback) && budget.admit())
+				ret.add(comeback);
+		}
+		if (budget.isExhausted())
+			budget.settle(replacements.size());
 		return ret;
 	}
 	
 	/**
-	 * Assumes this is a valid replacement
+	 * Assumes this is a valid replacement.
+	 * 
+	 * Only the nodes above a replacement are copied; untouched subtrees of the template
+	 * are shared with it (as the limbs are shared with the bank), so comebacks must not
+	 * be mutated.
 	 * 
 	 * @param replacements
 	 * @return
 	 */
 	public Tree buildFrankenTree(List<Tree> replacements) {
 		Preconditions.checkArgument(replacements.size() == templateNodes.size());
-		Tree frankenTree = template.deepCopy();
-		List<Tree> frankenTreeList = frankenTree.preOrderNodeList();
-		
-		for (int i=0; i<templateNodes.size(); i++) {
-			Tree toReplace = frankenTreeList.get(i);
-			Tree replacement = replacements.get(i);
-			// we aren't replacing anything
-			if (replacement == null) continue;
-			replaceLimb(toReplace, replacement, frankenTree);
-		}
-		
-		return frankenTree;
+		return buildFrankenTree(0, replacements);
 	}
 	
 	/**
-	 * Replaces a subtree of body.  Just returns replacement if the entire
-	 * body is replaced.
-	 * 
-	 * @param toReplace
-	 * @param replacement
-	 * @param body
-	 * @return
+	 * The subtree of template node <code>i</code> with its replacements made
 	 */
-	private Tree replaceLimb(Tree toReplace, Tree replacement, Tree body) {
-		Tree parent = toReplace.parent(body);
-		if (parent == null)
+	private Tree buildFrankenTree(int i, List<Tree> replacements) {
+		Tree replacement = replacements.get(i);
+		if (replacement != null)
 			return replacement;
-		for (int i=0; i<parent.getChildrenAsList().size(); i++)
-			if (parent.getChild(i) == toReplace) {
-				parent.setChild(i, replacement);
-				break;
-			}
-		return body;
-	}
-	
-	private Map<Tree,Integer> buildNodeToIndexMap() {
-		Map<Tree,Integer> ret = Maps.newHashMap();
-		for (int i=0; i<templateNodes.size(); i++)
-			ret.put(templateNodes.get(i), i);
-		return ret;
+		Tree node = templateIndex.node(i);
+		if (node.isLeaf() || !replacesUnder(i, replacements))
+			return node;
+		
+		Tree[] kids = node.children();
+		List<Tree> newKids = Lists.newArrayListWithCapacity(kids.length);
+		int child = i + 1;
+		for (int k=0; k<kids.length; k++) {
+			newKids.add(buildFrankenTree(child, replacements));
+			child = templateIndex.end(child);
+		}
+		return node.treeFactory().newTreeNode(node.label().labelFactory().newLabel(node.label()), newKids);
 	}
 	
-	private List<Set<Tree>> buildEmptyLimbventory() {
-		List<Set<Tree>> ret = Lists.newArrayList();
-		// initialize each entry to empty set
-		for (int i=0; i<templateNodes.size(); i++)
-			ret.add(Sets.<Tree>newHashSet());
-		return ret;
+	private boolean replacesUnder(int i, List<Tree> replacements) {
+		for (int j=i+1; j<templateIndex.end(i); j++)
+			if (replacements.get(j) != null)
+				return true;
+		return false;
 	}
 	
 	/**
@@ -196,9 +703,54 @@ public class FrankenTreeFactory {
 				for (Tree replacement : substitutionBank.get(key))
 					if (fn.isValid(toReplace, replacement))
 						append(toReplace, replacement, ret);
-		limbventory = ret;
+		limbventory = Limbventory.of(ret);
 	}
-	
+
+	/**
+	 * Same as <code>buildLimbventory(substitutionBank, rules)</code>, but only reads the
+	 * candidates the rules could accept from <code>bank</code>, and looks up the limbs
+	 * of each template subtree in <code>cache</code> first.  If <code>bank</code> is a
+	 * {@link CompactBank} for these rules, each class of bank trees is checked once and
+	 * goes into the limbventory as one class; otherwise every limb is a class of its own.
+	 *
+	 * @param bank
+	 * @param rules
+	 * @param cache
+	 */
+	public void buildLimbventory(final BankIndex bank, final ReplacementRules rules, LimbventoryCache cache) {
+		final CompactBank compact = bank instanceof CompactBank && ((CompactBank) bank).rules() == rules
+				? (CompactBank) bank : null;
+		List<ImmutableList<ImmutableSet<Tree>>> ret = Lists.newArrayList();
+		for (int i=0; i<templateNodes.size(); i++) {
+			final Tree toReplace = templateNodes.get(i);
+			ret.add(cache.get(toReplace, bank.version(), rules.version(), new Callable<ImmutableList<ImmutableSet<Tree>>>() {
+				@Override
+				public ImmutableList<ImmutableSet<Tree>> call() {
+					String firstChild = rules.requiresSameFirstChild(toReplace) && !toReplace.isLeaf()
+							? toReplace.firstChild().value() : null;
+					ImmutableList.Builder<ImmutableSet<Tree>> classes = ImmutableList.builder();
+					Set<Tree> limbs = Sets.newLinkedHashSet();
+					for (String label : rules.candidateLabels(toReplace)) {
+						if (compact != null) {
+							// the rules can't tell the trees of a class apart, so check one for all
+							for (CompactBank.LimbClass limbClass : compact.classes(label, firstChild))
+								if (rules.isValid(toReplace, limbClass.representative()))
+									classes.add(limbClass.members);
+						} else {
+							for (Tree replacement : bank.candidates(label, firstChild))
+								if (rules.isValid(toReplace, replacement))
+									limbs.add(replacement);
+						}
+					}
+					for (Tree limb : limbs)
+						classes.add(ImmutableSet.of(limb));
+					return classes.build();
+				}
+			}));
+		}
+		limbventory = Limbventory.ofClasses(ret);
+	}
+
 	public interface ValidReplacementFn {
 		public boolean isValid(Tree toReplace, Tree replacement);
 	}
@@ -212,10 +764,7 @@ public class FrankenTreeFactory {
 	 * @param limbventory
 	 */
 	public void append(Tree key, Tree value, List<Set<Tree>> limbventory) {
-		if (!nodeToIndex.keySet().contains(key)) return;
-		int index = nodeToIndex.get(key);
-		Set<Tree> values = limbventory.get(index);
-		values.add(value);
+		append(templateIndex.indexOf(key), value, limbventory);
 	}
 	
 	public void append(int index, Tree value, List<Set<Tree>> limbventory) {
@@ -0,0 +1,191 @@
+package comeback;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.MemoryUsage;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * How many comebacks one sentence may keep in memory, sized from the heap that's
+ * actually available rather than a fixed constant.
+ *
+ * The limit is a fraction of the free heap divided by an estimate of what one result
+ * costs (every node of the template is copied into each comeback).  While results are
+ * being admitted the heap is checked every so often, and once the live heap (as of
+ * the last GC) passes <code>PRESSURE_THRESHOLD</code> of the max, nothing more is
+ * admitted.  Everything turned away is counted so callers can report what was dropped.
+ *
+ * A budget can also carry a deadline, and can be cancelled from any thread.  Both
+ * just make it exhausted, which every generation loop already checks, so generation
+ * stops at the next substitution set or comeback and returns what it has so far,
+ * marked truncated.
+ *
+ * Admitting is thread safe.
+ *
+ * @author david
+ *
+ */
+public class GenerationBudget {
+	private static final double HEAP_FRACTION = 0.5;			// of the free heap one sentence may fill
+	private static final double PRESSURE_THRESHOLD = 0.85;		// of the max heap, live after GC
+	private static final long BYTES_PER_NODE = 120;				// a tree node, its label and child array
+	private static final long BYTES_PER_RESULT = 64;			// set entry and tree wrapper
+	private static final long MIN_RESULTS = 1000;
+	private static final int CHECK_EVERY = 4096;				// results between heap checks
+	private static final long NO_DEADLINE = Long.MIN_VALUE;
+
+	private final long maxResults;
+	private final AtomicLong kept = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean underPressure = false;
+	private volatile long deadline = NO_DEADLINE;				// System.nanoTime() to stop at
+	private volatile boolean timedOut = false;
+	private volatile boolean cancelled = false;
+
+	public GenerationBudget(long maxResults) {
+		this.maxResults = maxResults;
+	}
+
+	/**
+	 * A budget for comebacks of a template with <code>templateSize</code> nodes
+	 */
+	public static GenerationBudget forTemplate(int templateSize) {
+		return new GenerationBudget(Math.max(MIN_RESULTS, (long) (freeHeap() * HEAP_FRACTION / bytesPerResult(templateSize))));
+	}
+
+	/**
+	 * Estimated heap one materialized comeback of a template with <code>templateSize</code> nodes takes
+	 */
+	public static long bytesPerResult(int templateSize) {
+		return templateSize * BYTES_PER_NODE + BYTES_PER_RESULT;
+	}
+
+	public static long freeHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+	}
+
+	/**
+	 * Heap in use right after the last collection, which unlike the current usage
+	 * doesn't count garbage.  Falls back to the current usage if the JVM doesn't say.
+	 */
+	private static long liveHeap() {
+		long live = 0;
+		boolean known = false;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+			if (pool.getType() != MemoryType.HEAP) continue;
+			MemoryUsage usage = pool.getCollectionUsage();
+			if (usage == null) continue;
+			live += usage.getUsed();
+			known = true;
+		}
+		if (!known) {
+			Runtime runtime = Runtime.getRuntime();
+			return runtime.totalMemory() - runtime.freeMemory();
+		}
+		return live;
+	}
+
+	/**
+	 * Stops generation <code>millis</code> from now (0 or less for no deadline)
+	 * @return this budget
+	 */
+	public GenerationBudget withDeadline(long millis) {
+		deadline = millis > 0 ? System.nanoTime() + millis * 1000000L : NO_DEADLINE;
+		return this;
+	}
+
+	/**
+	 * Stops generation as soon as it next checks, from any thread
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return cancelled;
+	}
+
+	/**
+	 * True once the deadline has passed
+	 */
+	public boolean isTimedOut() {
+		if (!timedOut && deadline != NO_DEADLINE && System.nanoTime() - deadline >= 0)
+			timedOut = true;
+		return timedOut;
+	}
+
+	public long maxResults() {
+		return maxResults;
+	}
+
+	/**
+	 * Asks to keep one more result.
+	 * @return false if the result should be dropped
+	 */
+	public boolean admit() {
+		if (underPressure || cancelled || timedOut) {
+			dropped.incrementAndGet();
+			return false;
+		}
+		long n = kept.incrementAndGet();
+		if (n > maxResults) {
+			kept.decrementAndGet();
+			dropped.incrementAndGet();
+			return false;
+		}
+		if (n % CHECK_EVERY == 0 && liveHeap() > PRESSURE_THRESHOLD * Runtime.getRuntime().maxMemory()) {
+			System.out.println("MEMORY PRESSURE, no more comebacks for this sentence");
+			underPressure = true;
+		}
+		return true;
+	}
+
+	/**
+	 * Records results which were never produced (eg. skipped without being built)
+	 */
+	public void drop(long n) {
+		dropped.addAndGet(n);
+	}
+
+	/**
+	 * When generation stopped (or sampled) before covering all <code>total</code> results,
+	 * counts everything that wasn't kept as dropped.
+	 */
+	public void settle(long total) {
+		long missing = total - kept.get();
+		if (missing > dropped.get())
+			dropped.set(missing);
+	}
+
+	/**
+	 * True once generation should stop producing results altogether
+	 */
+	public boolean isExhausted() {
+		return underPressure || cancelled || kept.get() >= maxResults || isTimedOut();
+	}
+
+	/**
+	 * True if the results aren't everything, because some were dropped or generation was stopped
+	 */
+	public boolean isTruncated() {
+		return dropped.get() > 0 || cancelled || timedOut;
+	}
+
+	public long kept() {
+		return kept.get();
+	}
+
+	public long dropped() {
+		return dropped.get();
+	}
+
+	@Override
+	public String toString() {
+		return "kept " + kept() + " of budget " + maxResults + ", dropped " + dropped()
+				+ (underPressure ? " (memory pressure)" : "")
+				+ (timedOut ? " (deadline)" : "")
+				+ (cancelled ? " (cancelled)" : "");
+	}
+}
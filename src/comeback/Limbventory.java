@@ -0,0 +1,241 @@
+package comeback;
+
+import java.util.AbstractList;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.primitives.Ints;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * The limbs of every node of a template, grouped into classes of limbs the rules can't
+ * tell apart (see {@link CompactBank}) and stored compressed-sparse-row style: each
+ * distinct class gets an int id, and the ids of node <code>i</code>'s classes are
+ * <code>ids[offsets[i]]</code> up to <code>ids[offsets[i + 1]]</code>.  Most nodes have no
+ * limbs and nodes with the same label tend to share theirs, so this is two int arrays
+ * and one table of classes instead of a hash set per node.
+ *
+ * Generation walks a node's classes, counting each one for its multiplicity, and only
+ * reads a class's members when it writes a comeback out.  Limbs given without classes
+ * each get a class of their own.
+ *
+ * It's immutable, so generation reads a node's classes straight out of the arrays,
+ * shared by every substitution set, instead of copying them for each one.  It still
+ * reads as a list (by pre-order index) of read only sets of limbs for code that just
+ * wants to look.  A node's limbs keep the order they were given in, class by class.
+ *
+ * Classes are told apart by the identity of their first member when ids are handed out
+ * (limbs are bank trees, shared by every node that can use them, and a tree is in one
+ * class only), and limbs by equals() within a node.
+ *
+ * @author david
+ *
+ */
+public final class Limbventory extends AbstractList<Set<Tree>> {
+	private final int[] offsets;
+	private final int[] ids;
+	private final int[] counts;								// limbs of each node, over all its classes
+	private final ImmutableList<ImmutableList<Tree>> classes;	// members by id
+
+	private Limbventory(int[] offsets, int[] ids, ImmutableList<ImmutableList<Tree>> classes) {
+		this.offsets = offsets;
+		this.ids = ids;
+		this.classes = classes;
+		this.counts = new int[offsets.length - 1];
+		for (int i=0; i<counts.length; i++)
+			for (int j=offsets[i]; j<offsets[i + 1]; j++)
+				counts[i] += classes.get(ids[j]).size();
+	}
+
+	/**
+	 * @param perNode
+	 * 		limbs of each template node in pre-order, each in a class of its own
+	 */
+	public static Limbventory of(List<? extends Collection<Tree>> perNode) {
+		List<List<ImmutableSet<Tree>>> classes = Lists.newArrayListWithCapacity(perNode.size());
+		for (Collection<Tree> limbs : perNode) {
+			List<ImmutableSet<Tree>> nodeClasses = Lists.newArrayListWithCapacity(limbs.size());
+			for (Tree limb : limbs)
+				nodeClasses.add(ImmutableSet.of(limb));
+			classes.add(nodeClasses);
+		}
+		return ofClasses(classes);
+	}
+
+	/**
+	 * @param perNode
+	 * 		classes of limbs of each template node in pre-order.  Classes must not be empty,
+	 * 		and a limb must only be in one.
+	 */
+	public static Limbventory ofClasses(List<? extends List<? extends Collection<Tree>>> perNode) {
+		int[] offsets = new int[perNode.size() + 1];
+		List<Integer> ids = Lists.newArrayList();
+		Map<Tree, Integer> idOf = new IdentityHashMap<Tree, Integer>();
+		ImmutableList.Builder<ImmutableList<Tree>> classes = ImmutableList.builder();
+		for (int i=0; i<perNode.size(); i++) {
+			offsets[i] = ids.size();
+			for (Collection<Tree> members : perNode.get(i)) {
+				Tree first = Iterables.getFirst(members, null);
+				if (first == null)
+					throw new IllegalArgumentException("empty class of limbs for node " + i);
+				Integer id = idOf.get(first);
+				if (id == null) {
+					id = idOf.size();
+					idOf.put(first, id);
+					classes.add(ImmutableList.copyOf(members));
+				}
+				ids.add(id);
+			}
+		}
+		offsets[perNode.size()] = ids.size();
+		return new Limbventory(offsets, Ints.toArray(ids), classes.build());
+	}
+
+	/**
+	 * No limbs for any of <code>nodeCount</code> nodes
+	 */
+	public static Limbventory empty(int nodeCount) {
+		return new Limbventory(new int[nodeCount + 1], new int[0], ImmutableList.<ImmutableList<Tree>>of());
+	}
+
+	/**
+	 * Number of limbs of node <code>i</code>, the sum of its classes' multiplicities
+	 */
+	public int count(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * Number of classes of limbs of node <code>i</code>
+	 */
+	public int classCount(int i) {
+		return offsets[i + 1] - offsets[i];
+	}
+
+	/**
+	 * Id of the <code>c</code>th class of node <code>i</code>
+	 */
+	public int classId(int i, int c) {
+		return ids[offsets[i] + c];
+	}
+
+	/**
+	 * The limbs of the <code>c</code>th class of node <code>i</code>
+	 */
+	public ImmutableList<Tree> members(int i, int c) {
+		return classes.get(ids[offsets[i] + c]);
+	}
+
+	public int multiplicity(int i, int c) {
+		return members(i, c).size();
+	}
+
+	/**
+	 * The <code>k</code>th limb of node <code>i</code>, counting through its classes in order
+	 */
+	public Tree limb(int i, int k) {
+		for (int c=0; c<classCount(i); c++) {
+			ImmutableList<Tree> members = members(i, c);
+			if (k < members.size())
+				return members.get(k);
+			k -= members.size();
+		}
+		throw new IndexOutOfBoundsException(k + " past the " + count(i) + " limbs of node " + i);
+	}
+
+	/**
+	 * Every distinct class by id
+	 */
+	public ImmutableList<ImmutableList<Tree>> limbClasses() {
+		return classes;
+	}
+
+	/**
+	 * Number of distinct limbs over all nodes
+	 */
+	public int limbCount() {
+		int ret = 0;
+		for (ImmutableList<Tree> members : classes)
+			ret += members.size();
+		return ret;
+	}
+
+	/**
+	 * Position of <code>limb</code> among the limbs of node <code>i</code>, or -1
+	 */
+	public int indexOf(int i, Object limb) {
+		int before = 0;
+		for (int c=0; c<classCount(i); c++) {
+			ImmutableList<Tree> members = members(i, c);
+			int k = members.indexOf(limb);
+			if (k >= 0)
+				return before + k;
+			before += members.size();
+		}
+		return -1;
+	}
+
+	/**
+	 * The limbs of node <code>i</code> in order, read from the classes
+	 */
+	public List<Tree> limbs(final int i) {
+		return new AbstractList<Tree>() {
+			@Override
+			public Tree get(int k) {
+				if (k < 0 || k >= count(i))
+					throw new IndexOutOfBoundsException(k + " of " + count(i));
+				return limb(i, k);
+			}
+
+			@Override
+			public Iterator<Tree> iterator() {
+				List<ImmutableList<Tree>> nodeClasses = Lists.newArrayListWithCapacity(classCount(i));
+				for (int c=0; c<classCount(i); c++)
+					nodeClasses.add(members(i, c));
+				return Iterables.concat(nodeClasses).iterator();
+			}
+
+			@Override
+			public int size() {
+				return count(i);
+			}
+		};
+	}
+
+	@Override
+	public Set<Tree> get(final int i) {
+		if (i < 0 || i >= size())
+			throw new IndexOutOfBoundsException(i + " of " + size());
+		return new AbstractSet<Tree>() {
+			@Override
+			public Iterator<Tree> iterator() {
+				return limbs(i).iterator();
+			}
+
+			@Override
+			public int size() {
+				return count(i);
+			}
+
+			@Override
+			public boolean contains(Object o) {
+				return indexOf(i, o) >= 0;
+			}
+		};
+	}
+
+	@Override
+	public int size() {
+		return offsets.length - 1;
+	}
+}
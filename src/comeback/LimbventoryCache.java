@@ -0,0 +1,96 @@
+package comeback;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import util.Fingerprints;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Remembers which bank trees can replace a template subtree, so that phrases
+ * which show up again (in the same sentence, later sentences or other input
+ * files) don't get validated against the whole bank again.
+ *
+ * Entries are keyed by the subtree's fingerprint together with the versions of
+ * the bank and the rules they were computed with, so one cache can be shared
+ * across banks and rule sets and a changed bank never sees stale candidates.
+ * The cache is bounded and evicts the least recently used entries.
+ *
+ * @author david
+ *
+ */
+public class LimbventoryCache {
+
+	private static final class Key {
+		private final long fingerprint;
+		private final long bankVersion;
+		private final long ruleVersion;
+
+		public Key(long fingerprint, long bankVersion, long ruleVersion) {
+			this.fingerprint = fingerprint;
+			this.bankVersion = bankVersion;
+			this.ruleVersion = ruleVersion;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return fingerprint == other.fingerprint && bankVersion == other.bankVersion
+					&& ruleVersion == other.ruleVersion;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) Fingerprints.mix(Fingerprints.mix(fingerprint, bankVersion), ruleVersion);
+		}
+	}
+
+	private final Cache<Key, ImmutableList<ImmutableSet<Tree>>> cache;	// classes of limbs
+
+	public LimbventoryCache(long maximumSize) {
+		this.cache = CacheBuilder.newBuilder()
+				.maximumSize(maximumSize)
+				.recordStats()
+				.build();
+	}
+
+	/**
+	 * Returns the classes of limbs for <code>toReplace</code>, computing them with <code>loader</code>
+	 * if no subtree with the same structure was seen for this bank and rule version.
+	 */
+	public ImmutableList<ImmutableSet<Tree>> get(Tree toReplace, long bankVersion, long ruleVersion,
+			Callable<ImmutableList<ImmutableSet<Tree>>> loader) {
+		try {
+			return cache.get(new Key(Fingerprints.of(toReplace), bankVersion, ruleVersion), loader);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	public CacheStats stats() {
+		return cache.stats();
+	}
+
+	/**
+	 * Fingerprint of a bank's contents which doesn't depend on iteration order.
+	 */
+	public static long bankVersion(Map<String, ? extends Collection<Tree>> bank) {
+		long ret = 0;
+		for (Map.Entry<String, ? extends Collection<Tree>> entry : bank.entrySet()) {
+			long key = Fingerprints.fnv64(entry.getKey());
+			for (Tree tree : entry.getValue())
+				ret += Fingerprints.mix(key, Fingerprints.of(tree));
+		}
+		return ret;
+	}
+}
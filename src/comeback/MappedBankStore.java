@@ -0,0 +1,376 @@
+package comeback;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.PennTreeReader;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeFactory;
+
+/**
+ * A substitution bank stored on disk and memory mapped, so a bank with millions of
+ * phrases only costs heap for the handful of trees that are actually looked at.
+ *
+ * Trees are stored as their bracketed strings and grouped by label signature (root
+ * label and first child label), so looking up the candidates for a template node reads
+ * one contiguous slice.  The group directory is sorted by signature and searched where
+ * it is mapped, so opening a store reads nothing but the header.  A slice's trees are
+ * parsed when it's first asked for and kept in a cache bounded by tree count; groups
+ * too big for the cache are parsed a tree at a time as they're read.
+ *
+ * File layout (big endian):
+ * <pre>
+ * 	int magic, int formatVersion, long contentVersion, int groupCount, int treeCount
+ * 	groupCount x int position of each directory entry, relative to the first entry
+ * 	groupCount x { UTF rootLabel, UTF firstChildLabel ("" for leaves), int firstTree, int treeCount }
+ * 		sorted by root label then first child label
+ * 	(treeCount + 1) x long offset of each tree's bytes, relative to the start of the data
+ * 	UTF-8 bytes of every tree, group after group
+ * </pre>
+ *
+ * The whole file is mapped at once, so it has to be smaller than 2GB.
+ *
+ * @author david
+ *
+ */
+public class MappedBankStore implements BankIndex {
+	private static final int MAGIC = 0x43424b31;		// "CBK1"
+	private static final int FORMAT_VERSION = 2;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long CACHED_TREES = 100000;		// parsed trees kept from the slices read most recently
+
+	/**
+	 * A run of trees which all have the same signature
+	 */
+	private static final class Group {
+		public final int index;				// in the directory
+		public final String rootLabel;
+		public final String firstChildLabel;
+		public final int firstTree;
+		public final int treeCount;
+
+		public Group(int index, String rootLabel, String firstChildLabel, int firstTree, int treeCount) {
+			this.index = index;
+			this.rootLabel = rootLabel;
+			this.firstChildLabel = firstChildLabel;
+			this.firstTree = firstTree;
+			this.treeCount = treeCount;
+		}
+	}
+
+	private final TreeFactory treeFactory = new LabeledScoredTreeFactory();
+	private final MappedByteBuffer buffer;
+	private final long version;
+	private final int groupCount;
+	private final int treeCount;
+	private final int positionsStart;
+	private final int entriesStart;
+	private final int offsetsStart;
+	private final int dataStart;
+	private final long cachedTrees;
+	private final Cache<Integer, ImmutableList<Tree>> slices;	// group index -> its trees
+
+	private MappedBankStore(MappedByteBuffer buffer, long cachedTrees) {
+		this.buffer = buffer;
+		Preconditions.checkArgument(buffer.getInt() == MAGIC, "not a bank store");
+		Preconditions.checkArgument(buffer.getInt() == FORMAT_VERSION, "unsupported bank store version");
+		this.version = buffer.getLong();
+		this.groupCount = buffer.getInt();
+		this.treeCount = buffer.getInt();
+		this.positionsStart = buffer.position();
+		this.entriesStart = positionsStart + groupCount * 4;
+		this.offsetsStart = groupCount == 0 ? entriesStart : entryEnd(groupCount - 1);
+		this.dataStart = offsetsStart + (treeCount + 1) * 8;
+		this.cachedTrees = cachedTrees;
+		// one segment, so the bound applies to the whole cache rather than a quarter of it
+		this.slices = CacheBuilder.newBuilder()
+				.concurrencyLevel(1)
+				.maximumWeight(cachedTrees)
+				.weigher(new Weigher<Integer, ImmutableList<Tree>>() {
+					@Override
+					public int weigh(Integer group, ImmutableList<Tree> trees) {
+						return trees.size();
+					}
+				})
+				.build();
+	}
+
+	public static MappedBankStore open(File file) throws IOException {
+		return open(file, CACHED_TREES);
+	}
+
+	/**
+	 * @param cachedTrees
+	 * 		most parsed trees to keep
+	 */
+	public static MappedBankStore open(File file, long cachedTrees) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			Preconditions.checkArgument(channel.size() <= Integer.MAX_VALUE, "bank store is too big to map");
+			// the mapping stays valid after the channel is closed
+			return new MappedBankStore(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), cachedTrees);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Writes the trees of <code>bank</code> (keyed by root label) as a store.
+	 */
+	public static void write(Map<String, ? extends Collection<Tree>> bank, long version, File file) throws IOException {
+		Map<List<String>, Set<Tree>> bySignature = Maps.newTreeMap(SIGNATURE_ORDER);
+		for (Collection<Tree> trees : bank.values()) {
+			for (Tree tree : trees) {
+				Set<Tree> group = bySignature.get(signature(tree));
+				if (group == null) {
+					group = Sets.newLinkedHashSet();
+					bySignature.put(signature(tree), group);
+				}
+				group.add(tree);
+			}
+		}
+
+		List<byte[]> data = Lists.newArrayList();
+		List<Integer> positions = Lists.newArrayList();
+		ByteArrayOutputStream entries = new ByteArrayOutputStream();
+		DataOutputStream entryOut = new DataOutputStream(entries);
+		for (List<String> signature : bySignature.keySet()) {
+			positions.add(entryOut.size());
+			entryOut.writeUTF(signature.get(0));
+			entryOut.writeUTF(signature.get(1));
+			entryOut.writeInt(data.size());
+			Set<Tree> trees = bySignature.get(signature);
+			entryOut.writeInt(trees.size());
+			for (Tree tree : trees)
+				data.add(tree.toString().getBytes(UTF8));
+		}
+		entryOut.close();
+
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+		try {
+			out.writeInt(MAGIC);
+			out.writeInt(FORMAT_VERSION);
+			out.writeLong(version);
+			out.writeInt(positions.size());
+			out.writeInt(data.size());
+			for (int position : positions)
+				out.writeInt(position);
+			entries.writeTo(out);
+			long offset = 0;
+			for (byte[] bytes : data) {
+				out.writeLong(offset);
+				offset += bytes.length;
+			}
+			out.writeLong(offset);
+			for (byte[] bytes : data)
+				out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Root label and first child label ("" for leaves)
+	 */
+	private static List<String> signature(Tree tree) {
+		return ImmutableList.of(tree.value(), tree.isLeaf() ? "" : tree.firstChild().value());
+	}
+
+	private static int compare(String rootA, String firstChildA, String rootB, String firstChildB) {
+		int ret = rootA.compareTo(rootB);
+		return ret != 0 ? ret : firstChildA.compareTo(firstChildB);
+	}
+
+	private static final Comparator<List<String>> SIGNATURE_ORDER = new Comparator<List<String>>() {
+		@Override
+		public int compare(List<String> a, List<String> b) {
+			return MappedBankStore.compare(a.get(0), a.get(1), b.get(0), b.get(1));
+		}
+	};
+
+	/**
+	 * Same format as <code>DataInput.readUTF</code> (which is a superset of what
+	 * <code>DataOutput.writeUTF</code> writes for these labels)
+	 */
+	private static String readUTF(ByteBuffer buffer) {
+		int length = buffer.getShort() & 0xffff;
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+
+	private ByteBuffer entry(int g) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(entriesStart + buffer.getInt(positionsStart + g * 4));
+		return view;
+	}
+
+	private int entryEnd(int g) {
+		ByteBuffer view = entry(g);
+		for (int label=0; label<2; label++) {
+			int length = view.getShort() & 0xffff;
+			view.position(view.position() + length);
+		}
+		return view.position() + 8;
+	}
+
+	private Group group(int g) {
+		ByteBuffer view = entry(g);
+		String root = readUTF(view);
+		String firstChild = readUTF(view);
+		return new Group(g, root, firstChild, view.getInt(), view.getInt());
+	}
+
+	/**
+	 * Index of the first group whose signature isn't less than the given one
+	 */
+	private int lowerBound(String rootLabel, String firstChildLabel) {
+		int lo = 0, hi = groupCount;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			Group group = group(mid);
+			if (compare(group.rootLabel, group.firstChildLabel, rootLabel, firstChildLabel) < 0)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+	@Override
+	public Iterable<Tree> candidates(String rootLabel, String firstChildLabel) {
+		if (firstChildLabel != null) {
+			int g = lowerBound(rootLabel, firstChildLabel);
+			if (g == groupCount)
+				return ImmutableList.of();
+			Group group = group(g);
+			return group.rootLabel.equals(rootLabel) && group.firstChildLabel.equals(firstChildLabel)
+					? slice(group) : ImmutableList.<Tree>of();
+		}
+		// "" sorts first, so this is the first group with this root label
+		List<Iterable<Tree>> slices = Lists.newArrayList();
+		for (int g = lowerBound(rootLabel, ""); g < groupCount; g++) {
+			Group group = group(g);
+			if (!group.rootLabel.equals(rootLabel)) break;
+			slices.add(slice(group));
+		}
+		return Iterables.concat(slices);
+	}
+
+	/**
+	 * The trees of one group, from the cache if it fits
+	 */
+	private List<Tree> slice(final Group group) {
+		if (group.treeCount > cachedTrees)
+			return lazySlice(group);
+		try {
+			return slices.get(group.index, new Callable<ImmutableList<Tree>>() {
+				@Override
+				public ImmutableList<Tree> call() {
+					return ImmutableList.copyOf(lazySlice(group));
+				}
+			});
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * The trees of one group, parsed when they're read
+	 */
+	private List<Tree> lazySlice(final Group group) {
+		return new AbstractList<Tree>() {
+			@Override
+			public Tree get(int i) {
+				Preconditions.checkElementIndex(i, group.treeCount);
+				return tree(group.firstTree + i);
+			}
+
+			@Override
+			public int size() {
+				return group.treeCount;
+			}
+		};
+	}
+
+	private Tree tree(int i) {
+		long start = buffer.getLong(offsetsStart + i * 8);
+		long end = buffer.getLong(offsetsStart + (i + 1) * 8);
+		byte[] bytes = new byte[(int) (end - start)];
+		ByteBuffer view = buffer.duplicate();
+		view.position(dataStart + (int) start);
+		view.get(bytes);
+		// Tree.valueOf would normalize labels (eg. NP-TMP becomes NP), read them back exactly
+		try {
+			return new PennTreeReader(new StringReader(new String(bytes, UTF8)), treeFactory).readTree();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public int size() {
+		return treeCount;
+	}
+
+	@Override
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * Compiles bank files into a store.
+	 *
+	 * Usage: <code>MappedBankStore output.cbk bankfile...</code>
+	 */
+	public static void main(String[] args) throws IOException {
+		Preconditions.checkArgument(args.length >= 2, "usage: MappedBankStore output.cbk bankfile...");
+		Function<String, Tree> parser = ComebackGenerator.parser();
+		Map<String, List<Tree>> merged = Maps.newHashMap();
+		for (int i=1; i<args.length; i++) {
+			SubstitutionBank bank = SubstitutionBank.load(args[i], new File(args[i]), 1.0, parser);
+			for (Map.Entry<String, Set<Tree>> entry : bank.index().entrySet()) {
+				List<Tree> trees = merged.get(entry.getKey());
+				if (trees == null) {
+					trees = Lists.newArrayList();
+					merged.put(entry.getKey(), trees);
+				}
+				trees.addAll(entry.getValue());
+			}
+		}
+		ImmutableMap<String, List<Tree>> bank = ImmutableMap.copyOf(merged);
+		write(bank, LimbventoryCache.bankVersion(bank), new File(args[0]));
+		System.out.println("Wrote " + open(new File(args[0])).size() + " trees to " + args[0]);
+	}
+}
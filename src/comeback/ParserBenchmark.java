@@ -0,0 +1,273 @@
+package comeback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import util.Crawler;
+import util.Iterators;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.parser.lexparser.LexicalizedParser;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Runs every English parser model we ship over the input sentences and a bank, and
+ * reports what each one costs and what it does to the comebacks: load time, heap
+ * kept by the model and the parsed bank, sentences per second (parse and limbventory,
+ * not generation), how many template nodes found limbs, and how many substitution
+ * assignments the sentences' search spaces hold (counted, not generated).  Assignments
+ * aren't distinct comebacks: two assignments can yield the same words, so this is an
+ * upper bound on the comebacks a model can make, used to compare models.
+ *
+ * With <code>-select</code> it also picks the fastest model whose assignments are at
+ * least <code>-target</code> of the best model's, and writes it to
+ * <code>ComebackGenerator.SELECTED_MODEL_PATH</code>, which the generator uses when
+ * <code>comeback.parserModel</code> is "auto" (the default).
+ *
+ * Usage:
+ * <pre>
+ * 	ParserBenchmark [-models englishPCFG,wsjPCFG] [-input data/input/] [-banks cards-small]
+ * 		[-target 0.9] [-select]
+ * </pre>
+ * Without <code>-models</code> every model in the models directory whose name starts
+ * with "english" or "wsj" is run.
+ *
+ * @author david
+ *
+ */
+public class ParserBenchmark {
+	private static final String MODEL_SUFFIX = ".ser.gz";
+	private static final Charset UTF8 = Charset.forName("UTF-8");		// same as the generator reads the inputs with
+	private static final String SELECTED_MODEL_KEY = "model";
+
+	/**
+	 * What one model measured
+	 */
+	static class Result {
+		public final String model;
+		public final long loadMillis;
+		public final long heapBytes;			// kept after loading the model and the bank
+		public final int sentences;
+		public final long nanos;				// parsing and building limbventories
+		public final long nodes;
+		public final long nodesWithLimbs;
+		public final long assignments;			// searchSpace() sizes, duplicate yields included; saturating
+
+		public Result(String model, long loadMillis, long heapBytes, int sentences, long nanos, long nodes,
+				long nodesWithLimbs, long assignments) {
+			this.model = model;
+			this.loadMillis = loadMillis;
+			this.heapBytes = heapBytes;
+			this.sentences = sentences;
+			this.nanos = nanos;
+			this.nodes = nodes;
+			this.nodesWithLimbs = nodesWithLimbs;
+			this.assignments = assignments;
+		}
+
+		public double sentencesPerSecond() {
+			return nanos == 0 ? 0 : sentences / (nanos / 1e9);
+		}
+
+		/**
+		 * Fraction of template nodes with at least one limb
+		 */
+		public double hitRate() {
+			return nodes == 0 ? 0 : nodesWithLimbs / (double) nodes;
+		}
+
+		public static String header() {
+			return String.format("%-24s %8s %8s %9s %8s %7s %14s", "model", "load s", "heap MB", "sent/s",
+					"nodes", "hit %", "assignments");
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%-24s %8.1f %8.1f %9.2f %8d %7.1f %14d", model, loadMillis / 1000.0,
+					heapBytes / (1024.0 * 1024.0), sentencesPerSecond(), nodes, 100 * hitRate(), assignments);
+		}
+	}
+
+	/**
+	 * The English models in <code>directory</code>, sorted by name
+	 */
+	public static List<File> englishModels(File directory) {
+		File[] files = directory.listFiles();
+		List<File> ret = Lists.newArrayList();
+		if (files == null)
+			return ret;
+		Arrays.sort(files);
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(MODEL_SUFFIX) && (name.startsWith("english") || name.startsWith("wsj")))
+				ret.add(file);
+		}
+		return ret;
+	}
+
+	public static String modelName(File model) {
+		String name = model.getName();
+		return name.endsWith(MODEL_SUFFIX) ? name.substring(0, name.length() - MODEL_SUFFIX.length()) : name;
+	}
+
+	/**
+	 * Every non-empty line of every file under <code>directory</code>
+	 */
+	public static List<String> sentences(File directory) throws IOException {
+		List<String> ret = Lists.newArrayList();
+		for (File file : Crawler.getFilesInDir(directory)) {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				String line;
+				while ((line = in.readLine()) != null)
+					if (!line.trim().isEmpty())
+						ret.add(line);
+			} finally {
+				in.close();
+			}
+		}
+		return ret;
+	}
+
+	private static long usedHeap() {
+		System.gc();
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	public static Result run(File model, List<String> sentences, List<File> banks) throws IOException {
+		long heapBefore = usedHeap();
+		long start = System.currentTimeMillis();
+		LexicalizedParser parser = ComebackGenerator.loadParser(model.getPath());
+		BankRegistry registry = new BankRegistry(ComebackGenerator.parser(parser));
+		for (File bank : banks)
+			registry.add(bank.getName(), bank, 1.0);
+		long loadMillis = System.currentTimeMillis() - start;
+		long heapBytes = Math.max(0, usedHeap() - heapBefore);
+
+		CompactBank bank = new CompactBank(registry.snapshot(), ComebackGenerator.RULES);
+		LimbventoryCache cache = new LimbventoryCache(100000);
+		long nodes = 0, nodesWithLimbs = 0, assignments = 0;
+		start = System.nanoTime();
+		for (String sentence : sentences) {
+			Tree parse = parser.apply(sentence);
+			FrankenTreeFactory factory = new FrankenTreeFactory(parse);
+			factory.buildLimbventory(bank, ComebackGenerator.RULES, cache);
+			for (int i=0; i<factory.templateNodes.size(); i++) {
+				nodes++;
+				if (factory.limbventory.count(i) > 0)
+					nodesWithLimbs++;
+			}
+			assignments = Iterators.saturatedAdd(assignments, factory.searchSpace().size());
+		}
+		long nanos = System.nanoTime() - start;
+		return new Result(modelName(model), loadMillis, heapBytes, sentences.size(), nanos, nodes, nodesWithLimbs, assignments);
+	}
+
+	/**
+	 * The fastest model whose assignments are at least <code>target</code> of the most any model had
+	 */
+	public static Result select(List<Result> results, double target) {
+		Preconditions.checkArgument(!results.isEmpty(), "no models to choose from");
+		long best = 0;
+		for (Result result : results)
+			best = Math.max(best, result.assignments);
+		Result ret = null;
+		for (Result result : results)
+			if (result.assignments >= target * best
+					&& (ret == null || result.sentencesPerSecond() > ret.sentencesPerSecond()))
+				ret = result;
+		return ret;
+	}
+
+	/**
+	 * The model path the last selection wrote to <code>file</code>, or null if there isn't one
+	 */
+	public static String readSelection(File file) {
+		if (!file.exists())
+			return null;
+		Properties properties = new Properties();
+		try {
+			InputStream in = new FileInputStream(file);
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		return properties.getProperty(SELECTED_MODEL_KEY);
+	}
+
+	public static void writeSelection(File file, String modelPath, String comment) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty(SELECTED_MODEL_KEY, modelPath);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			properties.store(out, comment);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		// loads the generator (and its own parser) before anything is measured
+		Preconditions.checkNotNull(ComebackGenerator.RULES);
+		List<File> models = englishModels(new File(ComebackGenerator.MODELS_PATH));
+		File input = new File(ComebackGenerator.DATA_INPUT_PATH);
+		String banks = "cards-small";
+		double target = 0.9;
+		boolean select = false;
+		for (int i=0; i<args.length; i++) {
+			if (args[i].equals("-models")) {
+				models = Lists.newArrayList();
+				for (String name : args[++i].split(","))
+					models.add(new File(ComebackGenerator.modelPath(name.trim())));
+			}
+			else if (args[i].equals("-input")) input = new File(args[++i]);
+			else if (args[i].equals("-banks")) banks = args[++i];
+			else if (args[i].equals("-target")) target = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-select")) select = true;
+			else throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		List<File> bankFiles = Lists.newArrayList();
+		for (String name : banks.split(","))
+			bankFiles.add(new File(ComebackGenerator.DATA_PATH + ComebackGenerator.BANK_PATH + name.trim()));
+		List<String> sentences = ImmutableList.copyOf(sentences(input));
+
+		System.out.println(models.size() + " models, " + sentences.size() + " sentences from " + input
+				+ ", banks " + banks);
+		System.out.println(Result.header());
+		List<Result> results = Lists.newArrayList();
+		for (File model : models) {
+			Result result = run(model, sentences, bankFiles);
+			System.out.println(result);
+			results.add(result);
+		}
+
+		Result chosen = select(results, target);
+		System.out.println("Fastest model with at least " + target + " of the best yield: " + chosen.model);
+		if (select) {
+			File chosenModel = models.get(results.indexOf(chosen));
+			writeSelection(new File(ComebackGenerator.SELECTED_MODEL_PATH), chosenModel.getPath(),
+					String.format("%s: %.2f sentences/s, %d assignments on %s with %s", chosen.model,
+							chosen.sentencesPerSecond(), chosen.assignments, input, banks));
+			System.out.println("Wrote " + ComebackGenerator.SELECTED_MODEL_PATH);
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package comeback;
+
+import java.util.Arrays;
+
+/**
+ * A comeback written down as which limb goes where instead of as a tree: the template
+ * it came from and, for each replaceable site of the template, which of its limb
+ * classes is used and which member of that class (or -1 where the site is left alone).
+ *
+ * A recipe is a pair of small int arrays where the tree would copy every node above the
+ * replacements, so big result sets can be kept (and de-duplicated) as recipes and
+ * only turned into trees or words by their {@link RecipeBook} when they're written out.
+ *
+ * @author david
+ *
+ */
+public final class Recipe {
+	public static final int UNCHANGED = -1;
+
+	public final int template;
+	private final int[] classes;
+	private final int[] members;
+
+	Recipe(int template, int[] classes, int[] members) {
+		this.template = template;
+		this.classes = classes;
+		this.members = members;
+	}
+
+	public int siteCount() {
+		return classes.length;
+	}
+
+	/**
+	 * Index of the limb class used at site <code>k</code>, or <code>UNCHANGED</code>
+	 */
+	public int limbClass(int k) {
+		return classes[k];
+	}
+
+	/**
+	 * Index of the limb used at site <code>k</code> within its class
+	 */
+	public int member(int k) {
+		return members[k];
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof Recipe)) return false;
+		Recipe other = (Recipe) o;
+		return template == other.template && Arrays.equals(classes, other.classes)
+				&& Arrays.equals(members, other.members);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * template + Arrays.hashCode(classes)) + Arrays.hashCode(members);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder ret = new StringBuilder().append(template).append(":[");
+		for (int k=0; k<classes.length; k++) {
+			if (k > 0)
+				ret.append(", ");
+			ret.append(classes[k]);
+			if (classes[k] != UNCHANGED)
+				ret.append('.').append(members[k]);
+		}
+		return ret.append(']').toString();
+	}
+}
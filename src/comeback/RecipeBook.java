@@ -0,0 +1,352 @@
+package comeback;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import util.Fingerprints;
+import util.Iterators;
+import util.TreeIndex;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Sets;
+import com.google.common.primitives.Ints;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Everything needed to write down the comebacks of one template as {@link Recipe}s
+ * and to turn a recipe back into a tree or straight into words.
+ *
+ * The replaceable sites (template nodes with at least one limb) are numbered in
+ * pre-order; a substitution set is a bit mask over them.  Sets are walked over the
+ * sites' limb classes (see {@link Limbventory}) rather than their limbs: the class
+ * tuples of a set are the points of the Cartesian product of its sites' classes,
+ * numbered mixed radix with the last site varying fastest, and each one stands for the
+ * product of its classes' multiplicities comebacks.  A tuple is only expanded to its
+ * members (numbered the same way) when its comebacks are handed out.
+ *
+ * Words are made without building a tree: each template node knows the span of
+ * template leaves under it, so a comeback's yield is the template's words with the
+ * spans of the replaced nodes swapped for the limbs' words.  Limb words are cached
+ * by limb, and limbs are shared by every sentence that uses the same bank.
+ *
+ * @author david
+ *
+ */
+public class RecipeBook {
+	private static final AtomicInteger templates = new AtomicInteger();
+	private static final ConcurrentMap<Tree, String[]> limbWords = new MapMaker().weakKeys().makeMap();
+	static final int MAX_ENUMERABLE_SITES = 23;		// 2^23 substitution sets, about FrankenTreeFactory.POWERSET_LIMIT
+	private static final long SAMPLE_SEED = 0x5eedL;
+
+	public interface RecipeFn {
+		public void apply(Recipe recipe);
+	}
+
+	public interface YieldFn {
+		public void apply(List<String> words);
+	}
+
+	public final int template;
+	private final FrankenTreeFactory factory;
+	private final TreeIndex index;
+	private final int[] sites;							// pre-order index of each site
+	private final long[] siteAncestors;					// bit j of siteAncestors[k] is set if site j is an ancestor of site k
+	private final Limbventory limbventory;
+	private final String[] words;						// the template's leaves
+	private final int[] leafStart;						// first leaf under each template node
+	private final int[] leafEnd;						// one past the last leaf under each template node
+
+	RecipeBook(FrankenTreeFactory factory) {
+		this.template = templates.getAndIncrement();
+		this.factory = factory;
+		this.index = factory.templateIndex;
+
+		List<Integer> siteList = Lists.newArrayList();
+		for (int i=0; i<index.size(); i++)
+			if (factory.limbventory.count(i) > 0)
+				siteList.add(i);
+		this.sites = Ints.toArray(siteList);
+		this.siteAncestors = new long[sites.length];
+		this.limbventory = factory.limbventory;
+		for (int k=0; k<sites.length; k++)
+			for (int j=0; j<k && j<64; j++)
+				if (index.dominates(sites[j], sites[k]))
+					siteAncestors[k] |= 1L << j;
+
+		// leaves before each node in pre-order
+		int[] leavesBefore = new int[index.size() + 1];
+		List<String> leaves = Lists.newArrayList();
+		for (int i=0; i<index.size(); i++) {
+			leavesBefore[i + 1] = leavesBefore[i];
+			if (index.node(i).isLeaf()) {
+				leavesBefore[i + 1]++;
+				leaves.add(index.node(i).value());
+			}
+		}
+		this.words = leaves.toArray(new String[leaves.size()]);
+		this.leafStart = new int[index.size()];
+		this.leafEnd = new int[index.size()];
+		for (int i=0; i<index.size(); i++) {
+			leafStart[i] = leavesBefore[i];
+			leafEnd[i] = leavesBefore[index.end(i)];
+		}
+	}
+
+	public int siteCount() {
+		return sites.length;
+	}
+
+	/**
+	 * Pre-order index of site <code>k</code> in the template
+	 */
+	public int site(int k) {
+		return sites[k];
+	}
+
+	public List<Tree> limbs(int k) {
+		return limbventory.limbs(sites[k]);
+	}
+
+	/**
+	 * Number of limb classes of site <code>k</code>
+	 */
+	public int classCount(int k) {
+		return limbventory.classCount(sites[k]);
+	}
+
+	/**
+	 * True if the substitution sets can be walked as bit masks
+	 */
+	public boolean isEnumerable() {
+		return sites.length <= MAX_ENUMERABLE_SITES;
+	}
+
+	/**
+	 * True if no site in <code>mask</code> is an ancestor of another one
+	 */
+	public boolean isValid(long mask) {
+		for (int k=0; k<sites.length; k++)
+			if ((mask & (1L << k)) != 0 && (siteAncestors[k] & mask) != 0)
+				return false;
+		return true;
+	}
+
+	/**
+	 * Number of comebacks of substitution set <code>mask</code>, saturating: the product
+	 * of its sites' limb counts, each the sum of the site's class multiplicities
+	 */
+	public long size(long mask) {
+		long size = 1;
+		for (int k=0; k<sites.length; k++)
+			if ((mask & (1L << k)) != 0)
+				size = Iterators.saturatedMultiply(size, limbventory.count(sites[k]));
+		return size;
+	}
+
+	/**
+	 * Number of class tuples of substitution set <code>mask</code>, saturating
+	 */
+	public long classTuples(long mask) {
+		long size = 1;
+		for (int k=0; k<sites.length; k++)
+			if ((mask & (1L << k)) != 0)
+				size = Iterators.saturatedMultiply(size, limbventory.classCount(sites[k]));
+		return size;
+	}
+
+	/**
+	 * Class tuple <code>tuple</code> of the sites in <code>mask</code>, with the first member
+	 * of each class
+	 */
+	public Recipe recipe(long mask, long tuple) {
+		int[] classes = new int[sites.length];
+		Arrays.fill(classes, Recipe.UNCHANGED);
+		long rest = tuple;
+		for (int k=sites.length-1; k>=0; k--) {
+			if ((mask & (1L << k)) == 0) continue;
+			int n = limbventory.classCount(sites[k]);
+			classes[k] = (int) (rest % n);
+			rest /= n;
+		}
+		return new Recipe(template, classes, new int[sites.length]);
+	}
+
+	/**
+	 * Number of comebacks the class tuple of <code>recipe</code> stands for, saturating
+	 */
+	public long multiplicity(Recipe recipe) {
+		long ret = 1;
+		for (int k=0; k<sites.length; k++)
+			if (recipe.limbClass(k) != Recipe.UNCHANGED)
+				ret = Iterators.saturatedMultiply(ret, limbventory.multiplicity(sites[k], recipe.limbClass(k)));
+		return ret;
+	}
+
+	/**
+	 * The same class tuple as <code>recipe</code> with its <code>member</code>th choice of
+	 * members (the last site varies fastest)
+	 */
+	public Recipe member(Recipe recipe, long member) {
+		int[] classes = new int[sites.length];
+		int[] members = new int[sites.length];
+		long rest = member;
+		for (int k=sites.length-1; k>=0; k--) {
+			classes[k] = recipe.limbClass(k);
+			if (classes[k] == Recipe.UNCHANGED) continue;
+			int n = limbventory.multiplicity(sites[k], classes[k]);
+			members[k] = (int) (rest % n);
+			rest /= n;
+		}
+		return new Recipe(template, classes, members);
+	}
+
+	/**
+	 * The recipe of a replacement list (a limb or null for each template node in pre-order)
+	 */
+	public Recipe recipe(List<Tree> replacements) {
+		int[] classes = new int[sites.length];
+		int[] members = new int[sites.length];
+		for (int k=0; k<sites.length; k++) {
+			Tree limb = replacements.get(sites[k]);
+			classes[k] = Recipe.UNCHANGED;
+			for (int c=0; limb != null && c<limbventory.classCount(sites[k]); c++) {
+				int member = limbventory.members(sites[k], c).indexOf(limb);
+				if (member >= 0) {
+					classes[k] = c;
+					members[k] = member;
+					break;
+				}
+			}
+		}
+		return new Recipe(template, classes, members);
+	}
+
+	private Tree limb(int k, Recipe recipe) {
+		return limbventory.members(sites[k], recipe.limbClass(k)).get(recipe.member(k));
+	}
+
+	/**
+	 * The limb or null for each template node in pre-order, as <code>FrankenTreeFactory.buildFrankenTree</code> wants
+	 */
+	public List<Tree> replacements(Recipe recipe) {
+		checkTemplate(recipe);
+		List<Tree> ret = Lists.newArrayListWithCapacity(index.size());
+		for (int i=0; i<index.size(); i++)
+			ret.add(null);
+		for (int k=0; k<sites.length; k++)
+			if (recipe.limbClass(k) != Recipe.UNCHANGED)
+				ret.set(sites[k], limb(k, recipe));
+		return ret;
+	}
+
+	public Tree build(Recipe recipe) {
+		return factory.buildFrankenTree(replacements(recipe));
+	}
+
+	/**
+	 * The words of the comeback, same as <code>build(recipe).yieldWords()</code> but without building it
+	 */
+	public List<String> yieldOf(Recipe recipe) {
+		checkTemplate(recipe);
+		List<String> ret = Lists.newArrayListWithCapacity(words.length);
+		int cursor = 0;
+		for (int k=0; k<sites.length; k++) {
+			if (recipe.limbClass(k) == Recipe.UNCHANGED) continue;
+			int node = sites[k];
+			for (int w=cursor; w<leafStart[node]; w++)
+				ret.add(words[w]);
+			for (String word : limbWords(limb(k, recipe)))
+				ret.add(word);
+			cursor = leafEnd[node];
+		}
+		for (int w=cursor; w<words.length; w++)
+			ret.add(words[w]);
+		return ret;
+	}
+
+	private static String[] limbWords(Tree limb) {
+		String[] ret = limbWords.get(limb);
+		if (ret == null) {
+			List<Tree> leaves = limb.getLeaves();
+			ret = new String[leaves.size()];
+			for (int i=0; i<ret.length; i++)
+				ret[i] = leaves.get(i).value();
+			limbWords.put(limb, ret);
+		}
+		return ret;
+	}
+
+	private void checkTemplate(Recipe recipe) {
+		if (recipe.template != template)
+			throw new IllegalArgumentException("recipe " + recipe + " is for another template");
+	}
+
+	/**
+	 * Hands every comeback's recipe to <code>fn</code> until <code>budget</code> runs out
+	 * (<code>fn</code> decides what to admit): every class tuple of every valid substitution
+	 * set, each expanded to its members.
+	 * Recipes are distinct, but two recipes can still make the same tree.  When there are
+	 * too many sites to walk the substitution sets, <code>budget.maxResults()</code>
+	 * uniform samples are handed out instead (distinct, but possibly fewer).
+	 */
+	public void forEach(RecipeFn fn, GenerationBudget budget) {
+		if (!isEnumerable()) {
+			System.out.println("POWERSET LIMIT EXCEEDED " + " sites: " + sites.length + ", sampling instead");
+			SearchSpace space = factory.searchSpace();
+			Random rng = new Random(SAMPLE_SEED);
+			Set<Recipe> seen = Sets.newHashSet();
+			for (long i=0; i<budget.maxResults() && space.size() > 0 && !budget.isExhausted(); i++) {
+				Recipe recipe = recipe(space.sample(rng));
+				if (seen.add(recipe))
+					fn.apply(recipe);
+			}
+			budget.settle(space.size());
+			return;
+		}
+		for (long mask=1; mask < 1L << sites.length; mask++) {
+			if (budget.isExhausted()) {
+				budget.settle(factory.searchSpace().size());
+				return;
+			}
+			if (!isValid(mask)) continue;
+			long tuples = classTuples(mask);
+			for (long tuple=0; tuple<tuples; tuple++) {
+				Recipe classes = recipe(mask, tuple);
+				long multiplicity = multiplicity(classes);
+				for (long member=0; member<multiplicity; member++) {
+					if (budget.isExhausted()) {
+						budget.settle(factory.searchSpace().size());
+						return;
+					}
+					fn.apply(member(classes, member));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Hands the words of every distinct comeback (by yield) to <code>fn</code>, without building trees.
+	 * @return the number handed out
+	 */
+	public long forEachYield(final YieldFn fn, final GenerationBudget budget) {
+		final Set<Long> seen = Sets.newHashSet();
+		final long[] count = {0};
+		forEach(new RecipeFn() {
+			@Override
+			public void apply(Recipe recipe) {
+				List<String> comeback = yieldOf(recipe);
+				if (seen.add(Fingerprints.fnv64(comeback.toString())) && budget.admit()) {
+					fn.apply(comeback);
+					count[0]++;
+				}
+			}
+		}, budget);
+		return count[0];
+	}
+}
@@ -0,0 +1,252 @@
+package comeback;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+
+import util.Fingerprints;
+import util.SymbolTable;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Declarative rules which decide whether a bank tree can replace a node of a template.
+ *
+ * Rules are declared with a {@link Builder} in terms of named label classes:
+ * <ul>
+ * <li> <code>equivalent(cls)</code>: labels in <code>cls</code> may replace each other. Otherwise labels must match exactly.
+ * <li> <code>requireSameFirstChild(cls)</code>: replacing a node labelled in <code>cls</code> also requires the first children to have the same label.
+ * <li> <code>substitutable(cls)</code>: bank trees rooted in <code>cls</code> may be used as substitutions at all.
+ * <li> <code>restrict(words...)</code>: neither tree may contain any of these words.
+ * </ul>
+ *
+ * <code>compile()</code> interns every label into a symbol and turns each class into a bit,
+ * so that checking a pair of trees is a few int compares and mask ANDs.  The per tree
+ * facts (root label, first child label, restricted words) are computed once and cached by
+ * tree identity, which assumes trees aren't mutated after they are first checked.
+ *
+ * @author david
+ *
+ */
+public class ReplacementRules implements FrankenTreeFactory.ValidReplacementFn {
+
+	public static class Builder {
+		private final Map<String, Set<String>> classes = Maps.newLinkedHashMap();
+		private final Set<String> equivalent = Sets.newLinkedHashSet();
+		private final Set<String> sameFirstChild = Sets.newLinkedHashSet();
+		private final Set<String> substitutable = Sets.newLinkedHashSet();
+		private final Set<String> restricted = Sets.newLinkedHashSet();
+
+		public Builder labelClass(String name, String... labels) {
+			Set<String> members = classes.get(name);
+			if (members == null) {
+				Preconditions.checkState(classes.size() < 64, "at most 64 label classes are supported");
+				members = Sets.newLinkedHashSet();
+				classes.put(name, members);
+			}
+			for (String label : labels)
+				members.add(label);
+			return this;
+		}
+
+		public Builder equivalent(String className) {
+			equivalent.add(checkClass(className));
+			return this;
+		}
+
+		public Builder requireSameFirstChild(String className) {
+			sameFirstChild.add(checkClass(className));
+			return this;
+		}
+
+		public Builder substitutable(String className) {
+			substitutable.add(checkClass(className));
+			return this;
+		}
+
+		public Builder restrict(String... words) {
+			for (String word : words)
+				restricted.add(word);
+			return this;
+		}
+
+		private String checkClass(String className) {
+			Preconditions.checkArgument(classes.containsKey(className), "unknown label class " + className);
+			return className;
+		}
+
+		public ReplacementRules compile() {
+			return new ReplacementRules(this);
+		}
+	}
+
+	/**
+	 * The facts about a tree that the rules look at.
+	 */
+	public static final class Signature {
+		public final int label;			// NO_SYMBOL for leaves
+		public final int firstChild;		// NO_SYMBOL for leaves and preterminals
+		public final long classes;
+		public final boolean restricted;
+
+		Signature(int label, int firstChild, long classes, boolean restricted) {
+			this.label = label;
+			this.firstChild = firstChild;
+			this.classes = classes;
+			this.restricted = restricted;
+		}
+	}
+
+	private final SymbolTable labels = new SymbolTable();
+	private final long[] classMasks;			// indexed by label symbol
+	private final long equivalentMask;
+	private final long sameFirstChildMask;
+	private final long substitutableMask;
+	private final Set<String> restricted;
+	private final long version;
+	private final ConcurrentMap<Tree, Signature> signatures = new MapMaker().weakKeys().makeMap();
+
+	private ReplacementRules(Builder builder) {
+		List<String> classNames = Lists.newArrayList(builder.classes.keySet());
+		Map<String, Long> masks = Maps.newLinkedHashMap();
+		for (int i=0; i<classNames.size(); i++) {
+			for (String label : builder.classes.get(classNames.get(i))) {
+				labels.intern(label);
+				Long mask = masks.get(label);
+				masks.put(label, (mask == null ? 0L : mask) | (1L << i));
+			}
+		}
+		this.classMasks = new long[labels.size()];
+		for (String label : masks.keySet())
+			classMasks[labels.lookup(label)] = masks.get(label);
+
+		this.equivalentMask = maskOf(classNames, builder.equivalent);
+		this.sameFirstChildMask = maskOf(classNames, builder.sameFirstChild);
+		this.substitutableMask = maskOf(classNames, builder.substitutable);
+		this.restricted = Sets.newHashSet(builder.restricted);
+
+		long h = Fingerprints.FNV_OFFSET;
+		for (String name : classNames)
+			h = Fingerprints.fnv64(h, "class " + name + " " + builder.classes.get(name) + ";");
+		h = Fingerprints.fnv64(h, "equivalent " + builder.equivalent + ";");
+		h = Fingerprints.fnv64(h, "sameFirstChild " + builder.sameFirstChild + ";");
+		h = Fingerprints.fnv64(h, "substitutable " + builder.substitutable + ";");
+		h = Fingerprints.fnv64(h, "restricted " + builder.restricted + ";");
+		this.version = h;
+	}
+
+	private static long maskOf(List<String> classNames, Set<String> selected) {
+		long mask = 0;
+		for (String name : selected)
+			mask |= 1L << classNames.indexOf(name);
+		return mask;
+	}
+
+	/**
+	 * Fingerprint of the rule declarations.  Two rule sets with the same version
+	 * accept exactly the same replacements.
+	 */
+	public long version() {
+		return version;
+	}
+
+	@Override
+	public boolean isValid(Tree toReplace, Tree replacement) {
+		Signature a = signature(toReplace);
+		Signature b = signature(replacement);
+		if (a.restricted || b.restricted)
+			return false;
+		if (!sameLabel(a.label, b.label, toReplace, replacement) && (a.classes & b.classes & equivalentMask) == 0)
+			return false;
+		return (a.classes & sameFirstChildMask) == 0
+				|| sameLabel(a.firstChild, b.firstChild, firstChild(toReplace), firstChild(replacement));
+	}
+
+	/**
+	 * Leaf labels are words and aren't interned, so two trees whose symbols are both
+	 * <code>NO_SYMBOL</code> are told apart by their labels.
+	 */
+	private static boolean sameLabel(int a, int b, Tree aTree, Tree bTree) {
+		if (a != b)
+			return false;
+		return a != SymbolTable.NO_SYMBOL || aTree == null || bTree == null || aTree.value().equals(bTree.value());
+	}
+
+	private static Tree firstChild(Tree tree) {
+		return tree.isLeaf() ? null : tree.firstChild();
+	}
+
+	/**
+	 * Root labels a tree must have to possibly replace <code>toReplace</code>.
+	 * Empty if nothing can replace it.
+	 */
+	public Set<String> candidateLabels(Tree toReplace) {
+		Signature a = signature(toReplace);
+		if (a.restricted)
+			return ImmutableSet.of();
+		long equivalentClasses = a.classes & equivalentMask;
+		if (equivalentClasses == 0)
+			return ImmutableSet.of(toReplace.value());
+		ImmutableSet.Builder<String> ret = ImmutableSet.builder();
+		ret.add(toReplace.value());
+		for (int label=0; label<classMasks.length; label++)
+			if ((classMasks[label] & equivalentClasses) != 0)
+				ret.add(labels.name(label));
+		return ret.build();
+	}
+
+	/**
+	 * True if a replacement for <code>toReplace</code> must have the same first child label.
+	 */
+	public boolean requiresSameFirstChild(Tree toReplace) {
+		return (signature(toReplace).classes & sameFirstChildMask) != 0;
+	}
+
+	/**
+	 * True if <code>substitution</code> may be used as a substitution at all.
+	 */
+	public boolean isSubstitutable(Tree substitution) {
+		return (signature(substitution).classes & substitutableMask) != 0;
+	}
+
+	public Signature signature(Tree tree) {
+		Signature ret = signatures.get(tree);
+		if (ret == null) {
+			ret = computeSignature(tree);
+			signatures.put(tree, ret);
+		}
+		return ret;
+	}
+
+	/**
+	 * Only the labels of inner nodes are interned: there are a few dozen of them, while
+	 * leaf labels are the corpus vocabulary and would grow the table forever.
+	 */
+	private int symbol(Tree tree) {
+		return tree.isLeaf() ? SymbolTable.NO_SYMBOL : labels.intern(tree.value());
+	}
+
+	private Signature computeSignature(Tree tree) {
+		int label = symbol(tree);
+		int firstChild = tree.isLeaf() ? SymbolTable.NO_SYMBOL : symbol(tree.firstChild());
+		long classes = label >= 0 && label < classMasks.length ? classMasks[label] : 0L;
+
+		boolean usesRestricted = false;
+		for (Word word : tree.yieldWords()) {
+			if (restricted.contains(word.value())) {
+				usesRestricted = true;
+				break;
+			}
+		}
+		return new Signature(label, firstChild, classes, usesRestricted);
+	}
+}
@@ -0,0 +1,275 @@
+package comeback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.charset.Charset;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+import util.Fingerprints;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.PennTreeReader;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Remembers the comebacks made for a sentence, so a sentence that shows up again
+ * (in another input file or another run) skips parsing and generation entirely.
+ *
+ * Results are keyed by the normalized sentence together with the versions of the
+ * bank and the rules they were made with, so changing either one just stops the old
+ * results from being found.  There are two tiers: an LRU in memory, bounded by the
+ * total number of comebacks it holds, over a directory with one file per result.
+ * A result read from disk is promoted into memory.
+ *
+ * File layout (UTF-8 lines):
+ * <pre>
+ * 	CBR1
+ * 	sentence
+ * 	bankVersion ruleVersion
+ * 	parse tree
+ * 	one comeback tree per line
+ * </pre>
+ *
+ * Only complete results should be put here; a sampled or truncated result would be
+ * served as if it were everything.  Nothing about how the results get written out is
+ * in the key either, so a caller with several output modes should cache just one of
+ * them, or fold whatever changes the results into the rule version (ComebackGenerator
+ * does the first for yield-only and explain runs, and the second for the parser model
+ * and the search depth).
+ *
+ * @author david
+ *
+ */
+public class ResultCache {
+	private static final String MAGIC = "CBR1";
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public static final class Result {
+		public final Tree parse;
+		public final ImmutableList<Tree> comebacks;
+
+		public Result(Tree parse, ImmutableList<Tree> comebacks) {
+			this.parse = parse;
+			this.comebacks = comebacks;
+		}
+	}
+
+	private static final class Key {
+		private final String sentence;
+		private final long bankVersion;
+		private final long ruleVersion;
+
+		public Key(String sentence, long bankVersion, long ruleVersion) {
+			this.sentence = normalize(sentence);
+			this.bankVersion = bankVersion;
+			this.ruleVersion = ruleVersion;
+		}
+
+		public long fingerprint() {
+			return Fingerprints.mix(Fingerprints.mix(Fingerprints.fnv64(sentence), bankVersion), ruleVersion);
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key other = (Key) o;
+			return sentence.equals(other.sentence) && bankVersion == other.bankVersion
+					&& ruleVersion == other.ruleVersion;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) fingerprint();
+		}
+	}
+
+	private final Cache<Key, Result> memory;
+	private final File directory;		// null to only keep results in memory
+	private final AtomicLong diskHits = new AtomicLong();
+
+	/**
+	 * @param maximumComebacks
+	 * 		most comebacks to hold in memory across all results
+	 * @param directory
+	 * 		where results are stored, or null for memory only
+	 */
+	public ResultCache(long maximumComebacks, File directory) {
+		this.memory = CacheBuilder.newBuilder()
+				.maximumWeight(maximumComebacks)
+				.weigher(new Weigher<Key, Result>() {
+					@Override
+					public int weigh(Key key, Result result) {
+						return 1 + result.comebacks.size();
+					}
+				})
+				.recordStats()
+				.build();
+		this.directory = directory;
+		if (directory != null)
+			directory.mkdirs();
+	}
+
+	/**
+	 * Sentences which only differ in surrounding or repeated whitespace are the same sentence
+	 */
+	public static String normalize(String sentence) {
+		return sentence.trim().replaceAll("\\s+", " ");
+	}
+
+	/**
+	 * The stored result for <code>sentence</code>, or null if there isn't one for these versions
+	 */
+	public Result get(String sentence, long bankVersion, long ruleVersion) {
+		Key key = new Key(sentence, bankVersion, ruleVersion);
+		Result ret = memory.getIfPresent(key);
+		if (ret != null || directory == null)
+			return ret;
+		ret = read(key);
+		if (ret != null) {
+			diskHits.incrementAndGet();
+			memory.put(key, ret);
+		}
+		return ret;
+	}
+
+	public void put(String sentence, long bankVersion, long ruleVersion, Tree parse, Collection<Tree> comebacks) {
+		Key key = new Key(sentence, bankVersion, ruleVersion);
+		Result result = new Result(parse, ImmutableList.copyOf(comebacks));
+		memory.put(key, result);
+		if (directory != null)
+			write(key, result);
+	}
+
+	private File file(Key key) {
+		return new File(directory, String.format("%016x.cbr", key.fingerprint()));
+	}
+
+	/**
+	 * @return null if there's no file for the key (or a different key with the same fingerprint)
+	 */
+	private Result read(Key key) {
+		File file = file(key);
+		if (!file.exists())
+			return null;
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+			try {
+				if (!MAGIC.equals(in.readLine()) || !key.sentence.equals(in.readLine())
+						|| !(key.bankVersion + " " + key.ruleVersion).equals(in.readLine()))
+					return null;
+				String parseLine = in.readLine();
+				if (parseLine == null)
+					return null;
+				Tree parse = readTree(parseLine);
+				ImmutableList.Builder<Tree> comebacks = ImmutableList.builder();
+				String line;
+				while ((line = in.readLine()) != null)
+					comebacks.add(readTree(line));
+				return new Result(parse, comebacks.build());
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			// a bad file is just a miss
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes to a temporary file first so a reader never sees half a result
+	 */
+	private void write(Key key, Result result) {
+		File file = file(key);
+		File tmp = new File(directory, file.getName() + ".tmp");
+		try {
+			PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+			try {
+				out.println(MAGIC);
+				out.println(key.sentence);
+				out.println(key.bankVersion + " " + key.ruleVersion);
+				out.println(result.parse);
+				for (Tree comeback : result.comebacks)
+					out.println(comeback);
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file))
+					throw new IOException("couldn't rename " + tmp + " to " + file);
+			}
+		} catch (IOException e) {
+			// keep going without the disk tier for this result
+			e.printStackTrace();
+			tmp.delete();
+		}
+	}
+
+	/**
+	 * Tree.valueOf would normalize labels (eg. NP-TMP becomes NP), read them back exactly
+	 */
+	private static Tree readTree(String s) throws IOException {
+		return new PennTreeReader(new StringReader(s), new LabeledScoredTreeFactory()).readTree();
+	}
+
+	public CacheStats stats() {
+		return memory.stats();
+	}
+
+	public long diskHits() {
+		return diskHits.get();
+	}
+
+	/**
+	 * Deletes the stored results whose bank or rule version isn't the current one.
+	 * @return the number of files deleted
+	 */
+	public int evictStale(long bankVersion, long ruleVersion) {
+		if (directory == null)
+			return 0;
+		File[] files = directory.listFiles();
+		if (files == null)
+			return 0;
+		int ret = 0;
+		String current = bankVersion + " " + ruleVersion;
+		for (File file : files) {
+			if (!file.getName().endsWith(".cbr")) continue;
+			try {
+				BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+				boolean stale;
+				try {
+					in.readLine();
+					in.readLine();
+					stale = !current.equals(in.readLine());
+				} finally {
+					in.close();
+				}
+				if (stale && file.delete())
+					ret++;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return ret;
+	}
+
+	@Override
+	public String toString() {
+		return stats() + ", " + diskHits() + " from disk";
+	}
+}
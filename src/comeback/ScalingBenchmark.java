@@ -0,0 +1,366 @@
+package comeback;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import util.Iterators;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.PennTreeReader;
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Runs the whole pipeline (parse, limbventory, generation) over synthetic sentences
+ * and banks of growing size, and reports how it scales.
+ *
+ * For every combination of sentence length and bank size it prints throughput,
+ * per sentence latency percentiles, peak heap and how many comebacks were made.
+ * Sentences and banks come from a small phrase structure grammar whose words are
+ * drawn from a Zipf distribution, so a bigger bank really does give more limbs per node.
+ *
+ * Usage:
+ * <pre>
+ * 	ScalingBenchmark [-lengths 5,8,12] [-banks 10,30,100] [-sentences 20] [-warmup 5]
+ * 		[-skew 1.0] [-seed 1] [-parse] [-sequential]
+ * </pre>
+ * <code>-parse</code> runs sentences and banks through the real parser instead of
+ * reading the generated trees, which measures the parser too but is far slower.
+ *
+ * @author david
+ *
+ */
+public class ScalingBenchmark {
+	private static final String[] DETERMINERS = {"the", "a", "some", "this", "that", "every", "no"};
+	private static final String[] ADJECTIVES = {"big", "old", "smelly", "tiny", "angry", "fat", "ugly", "sad",
+			"loud", "greasy", "hairy", "stupid", "lazy", "wet", "cheap", "slow"};
+	private static final String[] NOUNS = {"dog", "bear", "drum", "cat", "mother", "store", "sandwich", "clown",
+			"boat", "shoe", "goat", "house", "car", "face", "toilet", "donkey", "banana", "cow", "truck", "sock",
+			"tree", "pig", "hat", "bucket", "lamp", "horse", "monkey", "pizza", "chair", "nose", "potato", "fish"};
+	private static final String[] VERBS = {"ate", "licked", "smelled", "kicked", "hit", "saw", "sold", "bought",
+			"found", "stole", "chased", "painted", "broke", "hugged", "sat on", "married"};
+	private static final String[] PREPOSITIONS = {"of", "in", "on", "with", "under", "near", "behind", "for"};
+
+	/**
+	 * Makes sentences and bank phrases with a toy grammar:
+	 * <pre>
+	 * 	S  -> NP VP
+	 * 	NP -> DT JJ* NN PP?
+	 * 	VP -> VBD NP PP?
+	 * 	PP -> IN NP
+	 * </pre>
+	 * Words are drawn with Zipf weights of exponent <code>skew</code> (0 for uniform).
+	 */
+	static class SyntheticCorpus {
+		private final Random rng;
+		private final double skew;
+
+		public SyntheticCorpus(long seed, double skew) {
+			this.rng = new Random(seed);
+			this.skew = skew;
+		}
+
+		/**
+		 * A sentence of exactly <code>words</code> words (at least 5), as a bracketed tree
+		 */
+		public String sentence(int words) {
+			Preconditions.checkArgument(words >= 5, "sentences have at least 5 words");
+			int subject = 2 + rng.nextInt(words - 4);
+			return "(ROOT (S " + np(subject) + " " + vp(words - subject) + " (. .)))";
+		}
+
+		/**
+		 * A bank line: mostly noun phrases, sometimes a whole sentence so there are verb phrases too
+		 */
+		public String bankPhrase() {
+			if (rng.nextInt(4) == 0)
+				return sentence(5 + rng.nextInt(4));
+			return "(ROOT " + np(2 + rng.nextInt(4)) + ")";
+		}
+
+		/**
+		 * A verb phrase of <code>words</code> words (at least 3)
+		 */
+		private String vp(int words) {
+			String[] verb = pick(VERBS).split(" ");
+			if (words - verb.length < 2)
+				verb = new String[] {verb[0]};
+			String head = verb.length == 1 ? "(VBD " + verb[0] + ")"
+					: "(VBD " + verb[0] + ") (PRT (RP " + verb[1] + "))";
+			int rest = words - verb.length;
+			if (rest >= 5 && rng.nextBoolean()) {
+				int object = 2 + rng.nextInt(rest - 4);
+				return "(VP " + head + " " + np(object) + " " + pp(rest - object) + ")";
+			}
+			return "(VP " + head + " " + np(rest) + ")";
+		}
+
+		/**
+		 * A noun phrase of <code>words</code> words (at least 2)
+		 */
+		private String np(int words) {
+			if (words >= 5 && rng.nextBoolean()) {
+				int head = 2 + rng.nextInt(words - 4);
+				return "(NP " + np(head) + " " + pp(words - head) + ")";
+			}
+			StringBuilder ret = new StringBuilder("(NP (DT " + pick(DETERMINERS) + ")");
+			for (int i=0; i<words-2; i++)
+				ret.append(" (JJ ").append(pick(ADJECTIVES)).append(")");
+			return ret.append(" (NN ").append(pick(NOUNS)).append("))").toString();
+		}
+
+		private String pp(int words) {
+			return "(PP (IN " + pick(PREPOSITIONS) + ") " + np(words - 1) + ")";
+		}
+
+		private String pick(String[] words) {
+			if (skew <= 0)
+				return words[rng.nextInt(words.length)];
+			double total = 0;
+			for (int i=1; i<=words.length; i++)
+				total += 1 / Math.pow(i, skew);
+			double r = rng.nextDouble() * total;
+			for (int i=1; i<=words.length; i++) {
+				r -= 1 / Math.pow(i, skew);
+				if (r <= 0)
+					return words[i - 1];
+			}
+			return words[words.length - 1];
+		}
+	}
+
+	/**
+	 * What one configuration measured
+	 */
+	static class Result {
+		public final int length;
+		public final int bankSize;
+		public final long[] latencies;		// nanos, one per sentence
+		public final long wallNanos;
+		public final long comebacks;
+		public final long possible;
+		public final int truncated;			// sentences which hit their budget
+		public final long peakHeap;
+
+		public Result(int length, int bankSize, long[] latencies, long wallNanos, long comebacks, long possible,
+				int truncated, long peakHeap) {
+			this.length = length;
+			this.bankSize = bankSize;
+			this.latencies = latencies.clone();
+			Arrays.sort(this.latencies);
+			this.wallNanos = wallNanos;
+			this.comebacks = comebacks;
+			this.possible = possible;
+			this.truncated = truncated;
+			this.peakHeap = peakHeap;
+		}
+
+		/**
+		 * Nearest rank percentile of the sentence latencies, in millis
+		 */
+		public double percentile(double p) {
+			if (latencies.length == 0)
+				return 0;
+			int rank = (int) Math.ceil(p / 100 * latencies.length);
+			return latencies[Math.max(0, Math.min(latencies.length, rank) - 1)] / 1e6;
+		}
+
+		public static String header() {
+			return String.format("%6s %8s %10s %12s %9s %9s %9s %9s %10s %12s %12s %5s",
+					"length", "bank", "sent/s", "comebacks/s", "p50 ms", "p90 ms", "p99 ms", "max ms",
+					"peak MB", "comebacks", "possible", "trunc");
+		}
+
+		@Override
+		public String toString() {
+			double seconds = wallNanos / 1e9;
+			return String.format("%6d %8d %10.2f %12.0f %9.2f %9.2f %9.2f %9.2f %10.1f %12d %12d %5d",
+					length, bankSize, latencies.length / seconds, comebacks / seconds,
+					percentile(50), percentile(90), percentile(99), percentile(100),
+					peakHeap / (1024.0 * 1024.0), comebacks, possible, truncated);
+		}
+	}
+
+	private final int sentences;
+	private final int warmup;
+	private final double skew;
+	private final long seed;
+	private final boolean parse;
+	private final boolean sequential;
+	private final ForkJoinPool pool = new ForkJoinPool();
+
+	public ScalingBenchmark(int sentences, int warmup, double skew, long seed, boolean parse, boolean sequential) {
+		this.sentences = sentences;
+		this.warmup = warmup;
+		this.skew = skew;
+		this.seed = seed;
+		this.parse = parse;
+		this.sequential = sequential;
+	}
+
+	/**
+	 * Reads back a generated tree without the parser
+	 */
+	private static Function<String, Tree> treeReader() {
+		return new Function<String, Tree>() {
+			@Override
+			public Tree apply(String line) {
+				try {
+					return new PennTreeReader(new StringReader(line), new LabeledScoredTreeFactory()).readTree();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Turns a generated sentence into the tree generation starts from
+	 */
+	private Tree parse(String bracketed) {
+		Tree tree = treeReader().apply(bracketed);
+		if (!parse)
+			return tree;
+		return ComebackGenerator.parser().apply(Joiner.on(" ").join(tree.yieldWords()));
+	}
+
+	/**
+	 * Writes a bank of <code>size</code> phrases to a temporary file and loads it
+	 */
+	private BankRegistry.Snapshot bank(int size) throws IOException {
+		SyntheticCorpus corpus = new SyntheticCorpus(seed * 31 + size, skew);
+		File file = File.createTempFile("synthetic-bank-" + size + "-", "");
+		file.deleteOnExit();
+		PrintWriter out = new PrintWriter(file, "UTF-8");
+		try {
+			for (int i=0; i<size; i++) {
+				String phrase = corpus.bankPhrase();
+				if (parse)
+					phrase = Joiner.on(" ").join(treeReader().apply(phrase).yieldWords());
+				out.println(phrase);
+			}
+		} finally {
+			out.close();
+		}
+		BankRegistry registry = new BankRegistry(parse ? ComebackGenerator.parser() : treeReader());
+		registry.add("synthetic-" + size, file, 1.0);
+		return registry.snapshot();
+	}
+
+	public Result run(int length, int bankSize) throws IOException {
+		CompactBank bank = new CompactBank(bank(bankSize), ComebackGenerator.RULES);
+		SyntheticCorpus corpus = new SyntheticCorpus(seed * 17 + length, skew);
+		List<String> input = Lists.newArrayList();
+		for (int i=0; i<warmup+sentences; i++)
+			input.add(corpus.sentence(length));
+
+		// a fresh cache each time so earlier configurations don't make this one look faster
+		LimbventoryCache cache = new LimbventoryCache(100000);
+		for (int i=0; i<warmup; i++)
+			generate(input.get(i), bank, cache);
+
+		System.gc();
+		resetPeakHeap();
+		long[] latencies = new long[sentences];
+		long comebacks = 0, possible = 0;
+		int truncated = 0;
+		long start = System.nanoTime();
+		for (int i=0; i<sentences; i++) {
+			long sentenceStart = System.nanoTime();
+			FrankenTreeFactory factory = new FrankenTreeFactory(parse(input.get(warmup + i)));
+			factory.buildLimbventory(bank, ComebackGenerator.RULES, cache);
+			GenerationBudget budget = factory.newBudget();
+			Set<Tree> ret = sequential ? factory.generateAllFrankenTrees(budget)
+					: factory.generateAllFrankenTrees(pool, budget);
+			latencies[i] = System.nanoTime() - sentenceStart;
+			comebacks += ret.size();
+			possible = Iterators.saturatedAdd(possible, factory.searchSpace().size());
+			if (budget.isTruncated())
+				truncated++;
+		}
+		long wall = System.nanoTime() - start;
+		return new Result(length, bankSize, latencies, wall, comebacks, possible, truncated, peakHeap());
+	}
+
+	private void generate(String sentence, BankIndex bank, LimbventoryCache cache) {
+		FrankenTreeFactory factory = new FrankenTreeFactory(parse(sentence));
+		factory.buildLimbventory(bank, ComebackGenerator.RULES, cache);
+		if (sequential)
+			factory.generateAllFrankenTrees();
+		else
+			factory.generateAllFrankenTrees(pool);
+	}
+
+	private static void resetPeakHeap() {
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				pool.resetPeakUsage();
+	}
+
+	/**
+	 * Sum of the heap pools' peaks since the last reset.  The pools peak at different
+	 * times so this overestimates a little, but it's comparable between runs.
+	 */
+	private static long peakHeap() {
+		long ret = 0;
+		for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+			if (pool.getType() == MemoryType.HEAP)
+				ret += pool.getPeakUsage().getUsed();
+		return ret;
+	}
+
+	private static int[] ints(String csv) {
+		String[] parts = csv.split(",");
+		int[] ret = new int[parts.length];
+		for (int i=0; i<parts.length; i++)
+			ret[i] = Integer.parseInt(parts[i].trim());
+		return ret;
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] lengths = {5, 8, 12};
+		int[] bankSizes = {10, 30, 100};
+		int sentences = 20;
+		int warmup = 5;
+		double skew = 1.0;
+		long seed = 1;
+		boolean parse = false;
+		boolean sequential = false;
+		for (int i=0; i<args.length; i++) {
+			if (args[i].equals("-lengths")) lengths = ints(args[++i]);
+			else if (args[i].equals("-banks")) bankSizes = ints(args[++i]);
+			else if (args[i].equals("-sentences")) sentences = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-warmup")) warmup = Integer.parseInt(args[++i]);
+			else if (args[i].equals("-skew")) skew = Double.parseDouble(args[++i]);
+			else if (args[i].equals("-seed")) seed = Long.parseLong(args[++i]);
+			else if (args[i].equals("-parse")) parse = true;
+			else if (args[i].equals("-sequential")) sequential = true;
+			else throw new IllegalArgumentException("unknown option " + args[i]);
+		}
+		for (int length : lengths)
+			Preconditions.checkArgument(length >= 5, "sentence lengths must be at least 5");
+
+		ScalingBenchmark benchmark = new ScalingBenchmark(sentences, warmup, skew, seed, parse, sequential);
+		System.out.println(sentences + " sentences per configuration, skew " + skew + ", seed " + seed
+				+ (parse ? ", parsed" : "") + (sequential ? ", sequential" : ", parallel")
+				+ ", max heap " + Runtime.getRuntime().maxMemory() / (1024 * 1024) + "MB");
+		System.out.println(Result.header());
+		for (int length : lengths)
+			for (int bankSize : bankSizes)
+				System.out.println(benchmark.run(length, bankSize));
+	}
+}
@@ -0,0 +1,235 @@
+package comeback;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+
+import util.Iterators;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Counts the comebacks a template can make from its limbventory without
+ * enumerating them, and draws them uniformly at random.
+ *
+ * A comeback picks a set of template nodes where none is an ancestor of another
+ * and a limb for each of them.  So for the subtree rooted at node <code>i</code>
+ * <pre>
+ * 	count(i) = |limbs(i)| + product of count(c) over the children c of i
+ * </pre>
+ * (either <code>i</code> is replaced, or it's kept and its children are filled in
+ * independently).  <code>count(root)</code> includes the template itself, which
+ * isn't a comeback, so the size of the space is <code>count(root) - 1</code>.
+ *
+ * A node's limbs come in classes (see {@link Limbventory}), and <code>|limbs(i)|</code>
+ * is the sum of its classes' multiplicities, so a class counts for all of its members
+ * without them being looked at.  Sampling picks a class by its multiplicity and then
+ * one of its members.
+ *
+ * Counts are kept exactly while they fit in a long and saturate after that; the
+ * natural log of every count is kept too so sampling stays uniform in huge spaces.
+ *
+ * Limbs can also be given weights (eg. the weight of the bank they came from).  Then
+ * a comeback is drawn with probability proportional to the product of its limbs'
+ * weights, by running the same recurrence over weight sums instead of counts; a class
+ * weighs the sum of its members' weights.
+ *
+ * @author david
+ *
+ */
+public class SearchSpace {
+	private final int[] childCount;
+	private final int[] subtreeSize;
+	private final Limbventory limbs;
+	private final long[] counts;
+	private final double[] logCounts;
+	private final double[][] cumulativeWeights;	// per node and class, null when sampling uniformly
+	private final Function<Tree, Double> weights;
+	private final double[] logMasses;				// log of the weighted count, what sampling follows
+
+	/**
+	 * @param template
+	 * @param limbventory
+	 * 		limbs for each template node, in pre-order
+	 */
+	public SearchSpace(Tree template, List<? extends Collection<Tree>> limbventory) {
+		this(template, limbventory, null);
+	}
+
+	/**
+	 * @param template
+	 * @param limbventory
+	 * 		limbs for each template node, in pre-order.  A {@link Limbventory} keeps its
+	 * 		classes, any other list gives each limb a class of its own.
+	 * @param weights
+	 * 		positive sampling weight of each limb, or null to sample uniformly
+	 */
+	public SearchSpace(Tree template, List<? extends Collection<Tree>> limbventory, Function<Tree, Double> weights) {
+		int n = limbventory.size();
+		this.childCount = new int[n];
+		this.subtreeSize = new int[n];
+		this.limbs = limbventory instanceof Limbventory ? (Limbventory) limbventory : Limbventory.of(limbventory);
+		this.counts = new long[n];
+		this.logCounts = new double[n];
+		this.weights = weights;
+		this.cumulativeWeights = weights == null ? null : new double[n][];
+		if (weights != null) {
+			for (int i=0; i<n; i++) {
+				cumulativeWeights[i] = new double[limbs.classCount(i)];
+				double sum = 0;
+				for (int c=0; c<cumulativeWeights[i].length; c++) {
+					for (Tree limb : limbs.members(i, c))
+						sum += weights.apply(limb);
+					cumulativeWeights[i][c] = sum;
+				}
+			}
+		}
+		this.logMasses = weights == null ? logCounts : new double[n];
+		int visited = count(template, 0);
+		Preconditions.checkArgument(visited == n, "limbventory doesn't match template");
+	}
+
+	/**
+	 * Fills in the counts for the subtree rooted at pre-order index <code>i</code>
+	 * @return the pre-order index after the subtree
+	 */
+	private int count(Tree node, int i) {
+		int self = i;
+		Tree[] kids = node.children();
+		childCount[self] = kids.length;
+		long product = 1;
+		double logProduct = 0;
+		double logMassProduct = 0;
+		i++;
+		for (Tree kid : kids) {
+			int child = i;
+			i = count(kid, i);
+			product = Iterators.saturatedMultiply(product, counts[child]);
+			logProduct += logCounts[child];
+			logMassProduct += logMasses[child];
+		}
+		int limbCount = limbs.count(self);
+		counts[self] = Iterators.saturatedAdd(product, limbCount);
+		logCounts[self] = logAdd(Math.log(limbCount), logProduct);
+		if (cumulativeWeights != null)
+			logMasses[self] = logAdd(Math.log(limbMass(self)), logMassProduct);
+		subtreeSize[self] = i - self;
+		return i;
+	}
+
+	/**
+	 * Total sampling weight of the limbs of node <code>i</code>
+	 */
+	private double limbMass(int i) {
+		if (cumulativeWeights == null)
+			return limbs.count(i);
+		double[] cumulative = cumulativeWeights[i];
+		return cumulative.length == 0 ? 0 : cumulative[cumulative.length - 1];
+	}
+
+	private static double logAdd(double a, double b) {
+		if (a == Double.NEGATIVE_INFINITY) return b;
+		if (b == Double.NEGATIVE_INFINITY) return a;
+		double max = Math.max(a, b);
+		return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+	}
+
+	/**
+	 * Number of comebacks, or <code>Long.MAX_VALUE</code> if that doesn't fit in a long.
+	 */
+	public long size() {
+		return isSaturated() ? Long.MAX_VALUE : counts[0] - 1;
+	}
+
+	public boolean isSaturated() {
+		return counts[0] == Long.MAX_VALUE;
+	}
+
+	/**
+	 * Natural log of the number of comebacks.  Accurate even when <code>size()</code> saturates.
+	 */
+	public double logSize() {
+		return logCounts[0] + Math.log1p(-Math.exp(-logCounts[0]));
+	}
+
+	/**
+	 * Number of ways to fill in the subtree rooted at pre-order index <code>i</code>,
+	 * including leaving it alone
+	 */
+	public long size(int i) {
+		return counts[i];
+	}
+
+	/**
+	 * Draws one comeback at random, uniformly unless there are weights.  The space must not be empty.
+	 *
+	 * @return
+	 * 		the limb for each template node in pre-order, or null where the node isn't replaced.
+	 * 		Suitable for <code>FrankenTreeFactory.buildFrankenTree</code>.
+	 */
+	public List<Tree> sample(Random rng) {
+		Preconditions.checkState(size() > 0, "no comebacks to sample");
+		List<Tree> ret = Lists.newArrayListWithCapacity(limbs.size());
+		for (int i=0; i<limbs.size(); i++)
+			ret.add(null);
+		// the template itself is drawn with probability 1/count(root), just draw again
+		while (sample(0, rng, ret) == 0)
+			;
+		return ret;
+	}
+
+	/**
+	 * @return the number of limbs placed
+	 */
+	private int sample(int i, Random rng, List<Tree> out) {
+		if (limbs.count(i) > 0) {
+			double mass = limbMass(i);
+			double replaceProbability = Math.exp(Math.log(mass) - logMasses[i]);
+			if (rng.nextDouble() < replaceProbability) {
+				out.set(i, pickLimb(i, mass, rng));
+				return 1;
+			}
+		}
+		int placed = 0;
+		int child = i + 1;
+		for (int k=0; k<childCount[i]; k++) {
+			placed += sample(child, rng, out);
+			child += subtreeSize[child];
+		}
+		return placed;
+	}
+
+	/**
+	 * A class of node <code>i</code> by its multiplicity (or weight), then one of its members
+	 */
+	private Tree pickLimb(int i, double mass, Random rng) {
+		if (cumulativeWeights == null)
+			return limbs.limb(i, rng.nextInt(limbs.count(i)));
+		double[] cumulative = cumulativeWeights[i];
+		double point = rng.nextDouble() * mass;
+		int c = Arrays.binarySearch(cumulative, point);
+		c = Math.min(c < 0 ? -c - 1 : c + 1, cumulative.length - 1);
+		// where the point falls among the class's members
+		double rest = point - (c == 0 ? 0 : cumulative[c - 1]);
+		ImmutableList<Tree> members = limbs.members(i, c);
+		for (Tree member : members) {
+			rest -= weights.apply(member);
+			if (rest < 0)
+				return member;
+		}
+		return members.get(members.size() - 1);
+	}
+
+	@Override
+	public String toString() {
+		if (isSaturated())
+			return String.format("~e^%.1f", logSize());
+		return Long.toString(size());
+	}
+}
@@ -0,0 +1,481 @@
+package comeback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import util.Fingerprints;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Runs a corpus through several JVMs (on this machine or any machine that sees the
+ * same job directory) instead of one.
+ *
+ * The coordinator splits every input file into shards by ranges of the hash of each
+ * line, so the same corpus always makes the same shards and a sentence that's repeated
+ * always lands in the same shard (and so hits the same worker's result cache).  Each
+ * input file is read once, and its lines are written out to their shards' own input
+ * files in the job directory.  Shards are handed out through a shared directory: a
+ * worker claims one by renaming it, which only one worker can do, and keeps its parser
+ * and banks warm across every shard it takes.  When every shard is done the coordinator
+ * puts each input file's output back together in line order, so the output is the same
+ * as a single process would write (both read and write UTF-8).
+ *
+ * Job directory layout:
+ * <pre>
+ * 	todo/ID.shard		shards nobody has claimed yet ("range ranges path")
+ * 	in/ID.in			the shard's lines, each as "lineNumber line"
+ * 	claimed/ID.shard	shards a worker is on
+ * 	done/ID.shard		finished shards
+ * 	out/ID.out			the shard's output, sentence after sentence
+ * 	out/ID.idx			"line offset length" of each sentence's output
+ * 	out/ID.metrics		what the worker counted, as properties
+ * 	worker-N.log		what a local worker printed
+ * </pre>
+ *
+ * Workers on other machines are started with <code>comeback.workerOf</code> set to the
+ * job directory, which is all they read.  If every local worker has exited with shards
+ * unfinished, their shards are put back and new workers started, a few times at most.
+ *
+ * @author david
+ *
+ */
+public class ShardedRun {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final long POLL_MILLIS = 500;
+	private static final int MAX_RESTARTS = 2;					// times to restart local workers that all died
+	private static final String WORKER_PROPERTY = "comeback.workerOf";
+	private static final String SHARDS_PROPERTY = "comeback.shards";
+
+	/**
+	 * The lines of one input file whose hashes fall in one of <code>ranges</code> equal ranges
+	 */
+	public static final class Shard {
+		public final int id;
+		public final File file;
+		public final int range;
+		public final int ranges;
+
+		public Shard(int id, File file, int range, int ranges) {
+			this.id = id;
+			this.file = file;
+			this.range = range;
+			this.ranges = ranges;
+		}
+
+		public boolean contains(String line) {
+			return rangeOf(Fingerprints.fnv64(ResultCache.normalize(line)), ranges) == range;
+		}
+
+		/**
+		 * Which of <code>ranges</code> equal ranges of the (unsigned) hashes <code>hash</code> is in
+		 */
+		public static int rangeOf(long hash, int ranges) {
+			return (int) (((hash >>> 32) * ranges) >>> 32);
+		}
+
+		public String name() {
+			return String.format("%05d", id);
+		}
+
+		public static Shard parse(int id, String spec) {
+			String[] parts = spec.split(" ", 3);
+			return new Shard(id, new File(parts[2]), Integer.parseInt(parts[0]), Integer.parseInt(parts[1]));
+		}
+
+		@Override
+		public String toString() {
+			return range + " " + ranges + " " + file.getPath();
+		}
+	}
+
+	/**
+	 * What the workers counted, added up
+	 */
+	public static final class Metrics {
+		public long shards;
+		public long sentences;
+		public long comebacks;
+		public long millis;						// spent by workers, summed
+
+		void add(Properties properties) {
+			shards++;
+			sentences += Long.parseLong(properties.getProperty("sentences", "0"));
+			comebacks += Long.parseLong(properties.getProperty("comebacks", "0"));
+			millis += Long.parseLong(properties.getProperty("millis", "0"));
+		}
+
+		@Override
+		public String toString() {
+			return shards + " shards, " + sentences + " sentences, " + comebacks + " comebacks, "
+					+ String.format("%.1f", millis / 1000.0) + "s of worker time";
+		}
+	}
+
+	/**
+	 * <code>ranges</code> shards of every file, numbered file by file
+	 */
+	public static ImmutableList<Shard> shards(List<File> files, int ranges) {
+		ImmutableList.Builder<Shard> ret = ImmutableList.builder();
+		int id = 0;
+		for (File file : files)
+			for (int range=0; range<ranges; range++)
+				ret.add(new Shard(id++, file, range, ranges));
+		return ret.build();
+	}
+
+	/**
+	 * Splits <code>files</code> into shards, runs them on <code>workers</code> local worker
+	 * JVMs (plus any remote ones that join) and writes each file's output to <code>outputs</code>.
+	 *
+	 * @param workers
+	 * 		local workers to start, 0 to only wait for remote ones
+	 */
+	public static Metrics coordinate(List<File> files, int ranges, int workers, File jobDir,
+			Function<File, File> outputs) throws IOException, InterruptedException {
+		long start = System.currentTimeMillis();
+		List<Shard> shards = shards(files, ranges);
+		prepare(jobDir, shards);
+		System.out.println("Sharded " + files.size() + " files into " + shards.size() + " shards in " + jobDir);
+
+		List<Process> processes = startWorkers(workers, jobDir, 0);
+		int restarts = 0;
+		int reported = -1;
+		while (true) {
+			int done = count(new File(jobDir, "done"));
+			if (done != reported) {
+				System.out.println("Shards done: " + done + " of " + shards.size());
+				reported = done;
+			}
+			if (done >= shards.size())
+				break;
+			if (workers > 0 && allExited(processes)) {
+				if (restarts >= MAX_RESTARTS) {
+					System.out.println("Workers keep dying, merging the " + done + " shards that finished");
+					break;
+				}
+				// whatever they had claimed won't be finished by them
+				requeue(jobDir);
+				restarts++;
+				processes = startWorkers(workers, jobDir, restarts * workers);
+			}
+			Thread.sleep(POLL_MILLIS);
+		}
+
+		Metrics metrics = merge(jobDir, shards, outputs);
+		System.out.println("Sharded run: " + metrics + ", "
+				+ String.format("%.1f", (System.currentTimeMillis() - start) / 1000.0) + "s wall");
+		return metrics;
+	}
+
+	/**
+	 * Clears out the job directory, splits the input files into the shards' inputs, and
+	 * queues <code>shards</code>
+	 */
+	static void prepare(File jobDir, List<Shard> shards) throws IOException {
+		for (String sub : new String[]{"todo", "claimed", "done", "in", "out"}) {
+			File dir = new File(jobDir, sub);
+			File[] old = dir.listFiles();
+			if (old != null)
+				for (File file : old)
+					file.delete();
+			dir.mkdirs();
+		}
+		Map<File, List<Shard>> byFile = Maps.newLinkedHashMap();
+		for (Shard shard : shards) {
+			if (!byFile.containsKey(shard.file))
+				byFile.put(shard.file, Lists.<Shard>newArrayList());
+			byFile.get(shard.file).add(shard);
+		}
+		for (Map.Entry<File, List<Shard>> entry : byFile.entrySet())
+			split(entry.getKey(), entry.getValue(), jobDir);
+		for (Shard shard : shards) {
+			File file = new File(jobDir, "todo/" + shard.name() + ".shard");
+			PrintWriter out = new PrintWriter(file, UTF8.name());
+			out.println(shard);
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes each line of <code>file</code>, with its line number, to the input of the shard it's in
+	 */
+	private static void split(File file, List<Shard> shards, File jobDir) throws IOException {
+		List<PrintWriter> outs = Lists.newArrayList();
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			for (Shard shard : shards)
+				outs.add(new PrintWriter(input(jobDir, shard), UTF8.name()));
+			int lineNumber = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				lineNumber++;
+				for (int i=0; i<shards.size(); i++) {
+					if (shards.get(i).contains(line)) {
+						outs.get(i).println(lineNumber + " " + line);
+						break;
+					}
+				}
+			}
+		} finally {
+			in.close();
+			for (PrintWriter out : outs)
+				out.close();
+		}
+	}
+
+	private static File input(File jobDir, Shard shard) {
+		return new File(jobDir, "in/" + shard.name() + ".in");
+	}
+
+	private static int count(File dir) {
+		String[] names = dir.list();
+		return names == null ? 0 : names.length;
+	}
+
+	/**
+	 * Worker JVMs like this one (same java, classpath and options), but working on <code>jobDir</code>
+	 */
+	private static List<Process> startWorkers(int workers, File jobDir, int firstNumber) throws IOException {
+		List<Process> ret = Lists.newArrayList();
+		for (int i=0; i<workers; i++) {
+			List<String> command = Lists.newArrayList();
+			command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+			for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments())
+				if (!argument.startsWith("-D" + SHARDS_PROPERTY + "=") && !argument.startsWith("-D" + WORKER_PROPERTY + "="))
+					command.add(argument);
+			command.add("-D" + WORKER_PROPERTY + "=" + jobDir.getPath());
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(ComebackGenerator.class.getName());
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(new File(jobDir, "worker-" + (firstNumber + i) + ".log"));
+			ret.add(builder.start());
+		}
+		return ret;
+	}
+
+	private static boolean allExited(List<Process> processes) {
+		for (Process process : processes) {
+			try {
+				process.exitValue();
+			} catch (IllegalThreadStateException e) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Puts claimed but unfinished shards back in the queue
+	 */
+	private static void requeue(File jobDir) {
+		File[] claimed = new File(jobDir, "claimed").listFiles();
+		if (claimed == null)
+			return;
+		for (File file : claimed) {
+			System.out.println("Requeueing shard " + file.getName());
+			file.renameTo(new File(jobDir, "todo/" + file.getName()));
+		}
+	}
+
+	/**
+	 * Claims and runs shards from <code>jobDir</code> until there are none left
+	 * @return the number of shards this worker ran
+	 */
+	public static int work(File jobDir, ComebackGenerator.SentenceFn<Long> fn) throws IOException {
+		return work(jobDir, fn, null);
+	}
+
+	/**
+	 * Same as <code>work(jobDir, fn)</code>, but says which shard it's starting on <code>progress</code>
+	 */
+	public static int work(File jobDir, ComebackGenerator.SentenceFn<Long> fn, PrintStream progress) throws IOException {
+		String worker = ManagementFactory.getRuntimeMXBean().getName();
+		int ret = 0;
+		File claimed;
+		while ((claimed = claim(jobDir)) != null) {
+			String name = claimed.getName();
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(claimed), UTF8));
+			Shard shard;
+			try {
+				shard = Shard.parse(Integer.parseInt(name.substring(0, name.indexOf('.'))), in.readLine());
+			} finally {
+				in.close();
+			}
+			if (progress != null)
+				progress.println("Worker " + worker + " running shard " + shard.name() + ": " + shard);
+			run(shard, jobDir, fn);
+			claimed.renameTo(new File(jobDir, "done/" + name));
+			ret++;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return the claimed shard file, or null if there's nothing left to claim
+	 */
+	private static File claim(File jobDir) {
+		String[] todo = new File(jobDir, "todo").list();
+		if (todo == null)
+			return null;
+		Arrays.sort(todo);
+		for (String name : todo) {
+			File claimed = new File(jobDir, "claimed/" + name);
+			// only one worker's rename succeeds
+			if (new File(jobDir, "todo/" + name).renameTo(claimed))
+				return claimed;
+		}
+		return null;
+	}
+
+	/**
+	 * Runs the lines of <code>shard</code> through <code>fn</code>, writing their output and where each one's starts
+	 */
+	static void run(Shard shard, File jobDir, ComebackGenerator.SentenceFn<Long> fn) throws IOException {
+		long start = System.currentTimeMillis();
+		long sentences = 0;
+		long comebacks = 0;
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(input(jobDir, shard)), UTF8));
+		OutputStream out = new FileOutputStream(new File(jobDir, "out/" + shard.name() + ".out"));
+		PrintWriter index = new PrintWriter(new File(jobDir, "out/" + shard.name() + ".idx"), UTF8.name());
+		try {
+			long offset = 0;
+			String numbered;
+			while ((numbered = in.readLine()) != null) {
+				int space = numbered.indexOf(' ');
+				int lineNumber = Integer.parseInt(numbered.substring(0, space));
+				String line = numbered.substring(space + 1);
+				StringWriter buffer = new StringWriter();
+				PrintWriter sentenceOut = new PrintWriter(buffer);
+				Long written = fn.apply(line, sentenceOut);
+				sentenceOut.flush();
+				byte[] bytes = buffer.toString().getBytes(UTF8);
+				out.write(bytes);
+				index.println(lineNumber + " " + offset + " " + bytes.length);
+				offset += bytes.length;
+				sentences++;
+				if (written != null)
+					comebacks += written;
+			}
+		} finally {
+			in.close();
+			out.close();
+			index.close();
+		}
+		Properties metrics = new Properties();
+		metrics.setProperty("sentences", Long.toString(sentences));
+		metrics.setProperty("comebacks", Long.toString(comebacks));
+		metrics.setProperty("millis", Long.toString(System.currentTimeMillis() - start));
+		OutputStream metricsOut = new FileOutputStream(new File(jobDir, "out/" + shard.name() + ".metrics"));
+		try {
+			metrics.store(metricsOut, shard.toString());
+		} finally {
+			metricsOut.close();
+		}
+	}
+
+	/**
+	 * Where one sentence's output is
+	 */
+	private static final class Block {
+		public final int line;
+		public final Shard shard;
+		public final long offset;
+		public final int length;
+
+		public Block(int line, Shard shard, long offset, int length) {
+			this.line = line;
+			this.shard = shard;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Writes each file's output from its finished shards, in line order, and adds up their metrics
+	 */
+	static Metrics merge(File jobDir, List<Shard> shards, Function<File, File> outputs) throws IOException {
+		Metrics metrics = new Metrics();
+		Map<File, List<Block>> blocks = Maps.newLinkedHashMap();
+		for (Shard shard : shards) {
+			if (!blocks.containsKey(shard.file))
+				blocks.put(shard.file, Lists.<Block>newArrayList());
+			if (!new File(jobDir, "done/" + shard.name() + ".shard").exists()) {
+				System.out.println("Shard " + shard.name() + " (" + shard + ") never finished, its sentences are missing");
+				continue;
+			}
+			BufferedReader index = new BufferedReader(new InputStreamReader(
+					new FileInputStream(new File(jobDir, "out/" + shard.name() + ".idx")), UTF8));
+			try {
+				String line;
+				while ((line = index.readLine()) != null) {
+					String[] parts = line.split(" ");
+					blocks.get(shard.file).add(new Block(Integer.parseInt(parts[0]), shard,
+							Long.parseLong(parts[1]), Integer.parseInt(parts[2])));
+				}
+			} finally {
+				index.close();
+			}
+			Properties properties = new Properties();
+			FileInputStream in = new FileInputStream(new File(jobDir, "out/" + shard.name() + ".metrics"));
+			try {
+				properties.load(in);
+			} finally {
+				in.close();
+			}
+			metrics.add(properties);
+		}
+
+		for (Map.Entry<File, List<Block>> entry : blocks.entrySet()) {
+			List<Block> fileBlocks = entry.getValue();
+			Collections.sort(fileBlocks, new Comparator<Block>() {
+				@Override
+				public int compare(Block a, Block b) {
+					return a.line < b.line ? -1 : a.line > b.line ? 1 : 0;
+				}
+			});
+			Map<Shard, RandomAccessFile> shardOutputs = Maps.newHashMap();
+			OutputStream out = new FileOutputStream(outputs.apply(entry.getKey()));
+			try {
+				for (Block block : fileBlocks) {
+					RandomAccessFile shardOutput = shardOutputs.get(block.shard);
+					if (shardOutput == null) {
+						shardOutput = new RandomAccessFile(new File(jobDir, "out/" + block.shard.name() + ".out"), "r");
+						shardOutputs.put(block.shard, shardOutput);
+					}
+					byte[] bytes = new byte[block.length];
+					shardOutput.seek(block.offset);
+					shardOutput.readFully(bytes);
+					out.write(bytes);
+				}
+			} finally {
+				out.close();
+				for (RandomAccessFile shardOutput : shardOutputs.values())
+					shardOutput.close();
+			}
+		}
+		return metrics;
+	}
+}
@@ -0,0 +1,165 @@
+package comeback;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+
+import com.google.common.base.Joiner;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Why a sentence has as many comebacks as it does, worked out from its limbventory
+ * without generating any of them: how big the template is, how many limbs (and
+ * classes of limbs) each node has, how many substitution sets are valid, how many
+ * class tuples and comebacks the biggest sets' Cartesian products have and what all of
+ * that adds up to.  It also says which
+ * limit generation would run into.
+ *
+ * The number of valid substitution sets is counted the same way as the comebacks
+ * (see {@link SearchSpace}) with every site given a single limb, so it's exact even
+ * when there are far too many sets to walk.  Per set sizes are only listed when the
+ * sets can be walked.
+ *
+ * @author david
+ *
+ */
+public class SpaceExplanation {
+	private static final int LARGEST_SETS = 10;		// substitution sets to list
+
+	/**
+	 * A valid substitution set and how many comebacks it makes
+	 */
+	public static final class SubstitutionSet {
+		public final long mask;				// over the sites of the recipe book
+		public final ImmutableList<Integer> nodes;
+		public final long size;
+		public final long classTuples;		// what generation walks, each tuple multiplied by its classes' sizes
+
+		SubstitutionSet(long mask, ImmutableList<Integer> nodes, long size, long classTuples) {
+			this.mask = mask;
+			this.nodes = nodes;
+			this.size = size;
+			this.classTuples = classTuples;
+		}
+	}
+
+	public final Tree template;
+	private final List<Tree> templateNodes;
+	public final int nodeCount;
+	public final int siteCount;
+	public final ImmutableList<Integer> limbCounts;		// per template node in pre-order
+	public final ImmutableList<Integer> classCounts;	// per template node in pre-order
+	public final long validSets;						// saturating
+	public final ImmutableList<SubstitutionSet> largestSets;	// empty if there are too many sets to walk
+	public final SearchSpace space;
+	public final long powersetSize;
+	public final long powersetLimit;
+	public final long budget;
+
+	SpaceExplanation(FrankenTreeFactory factory, long powersetLimit, GenerationBudget budget) {
+		this.template = factory.template;
+		this.templateNodes = factory.templateNodes;
+		this.nodeCount = factory.templateNodes.size();
+		ImmutableList.Builder<Integer> limbCounts = ImmutableList.builder();
+		ImmutableList.Builder<Integer> classCounts = ImmutableList.builder();
+		List<Set<Tree>> oneLimbEach = Lists.newArrayList();
+		int sites = 0;
+		for (int i=0; i<nodeCount; i++) {
+			int count = factory.limbventory.count(i);
+			limbCounts.add(count);
+			classCounts.add(factory.limbventory.classCount(i));
+			oneLimbEach.add(count == 0 ? ImmutableSet.<Tree>of() : ImmutableSet.of(factory.templateNodes.get(i)));
+			if (count > 0)
+				sites++;
+		}
+		this.limbCounts = limbCounts.build();
+		this.classCounts = classCounts.build();
+		this.siteCount = sites;
+		this.validSets = new SearchSpace(template, oneLimbEach).size();
+		this.space = factory.searchSpace();
+		this.powersetSize = sites >= 63 ? Long.MAX_VALUE : 1L << sites;
+		this.powersetLimit = powersetLimit;
+		this.budget = budget.maxResults();
+		this.largestSets = largestSets(factory.recipeBook());
+	}
+
+	private static ImmutableList<SubstitutionSet> largestSets(RecipeBook book) {
+		if (!book.isEnumerable())
+			return ImmutableList.of();
+		List<SubstitutionSet> ret = Lists.newArrayList();
+		Comparator<SubstitutionSet> bySize = new Comparator<SubstitutionSet>() {
+			@Override
+			public int compare(SubstitutionSet a, SubstitutionSet b) {
+				return a.size < b.size ? 1 : a.size > b.size ? -1 : Long.compare(a.mask, b.mask);
+			}
+		};
+		long smallest = 0;
+		for (long mask=1; mask < 1L << book.siteCount(); mask++) {
+			if (!book.isValid(mask)) continue;
+			long size = book.size(mask);
+			if (ret.size() >= LARGEST_SETS && size <= smallest) continue;
+			ImmutableList.Builder<Integer> nodes = ImmutableList.builder();
+			for (int k=0; k<book.siteCount(); k++)
+				if ((mask & (1L << k)) != 0)
+					nodes.add(book.site(k));
+			ret.add(new SubstitutionSet(mask, nodes.build(), size, book.classTuples(mask)));
+			Collections.sort(ret, bySize);
+			if (ret.size() > LARGEST_SETS)
+				ret.remove(ret.size() - 1);
+			smallest = ret.get(ret.size() - 1).size;
+		}
+		return ImmutableList.copyOf(ret);
+	}
+
+	/**
+	 * What generation would do with this space
+	 */
+	public String limit() {
+		if (powersetSize > powersetLimit)
+			return "POWERSET LIMIT (" + powersetSize + " site subsets > " + powersetLimit + "), would sample";
+		if (space.size() > budget)
+			return "ITERATION LIMIT (" + space + " comebacks > budget " + budget + "), would sample";
+		return "none, would enumerate";
+	}
+
+	private String describe(int node) {
+		Tree tree = templateNodes.get(node);
+		return node + ":" + tree.value() + " \"" + Joiner.on(" ").join(tree.yieldWords()) + "\"";
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder ret = new StringBuilder();
+		ret.append("Template nodes: ").append(nodeCount).append(", replaceable sites: ").append(siteCount).append("\n");
+		for (int i=0; i<nodeCount; i++)
+			if (limbCounts.get(i) > 0)
+				ret.append("  ").append(describe(i)).append(": ").append(limbCounts.get(i)).append(" limbs in ")
+						.append(classCounts.get(i)).append(" classes, ")
+						.append(space.size(i) - 1).append(" comebacks of this subtree\n");
+		ret.append("Valid substitution sets: ").append(validSets).append(" of ").append(powersetSize - 1)
+				.append(" site subsets\n");
+		if (largestSets.isEmpty() && validSets > 0) {
+			ret.append("Too many substitution sets to list\n");
+		} else if (!largestSets.isEmpty()) {
+			ret.append("Largest substitution sets:\n");
+			for (SubstitutionSet set : largestSets) {
+				List<String> nodes = Lists.newArrayList();
+				for (int node : set.nodes)
+					nodes.add(describe(node));
+				ret.append("  ").append(set.size).append(" (").append(set.classTuples).append(" class tuples) from ")
+						.append(nodes).append("\n");
+			}
+		}
+		ret.append("Projected comebacks: ").append(space);
+		if (space.size() > 0)
+			ret.append(String.format(" (e^%.1f)", space.logSize()));
+		ret.append("\n");
+		ret.append("Limit hit: ").append(limit()).append("\n");
+		return ret.toString();
+	}
+}
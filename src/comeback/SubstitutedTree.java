@@ -0,0 +1,157 @@
+package comeback;
+
+import java.util.Arrays;
+import java.util.List;
+
+import util.Fingerprints;
+import util.TreeIndex;
+
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * A Tree which has a set its subtrees replaced by trees from the substitution bank.
+ * It also has easy references to its substitutions.
+ *
+ * Also, the substitutions are shared among SubstitutedTrees. (Ie. You can have
+ * trees A and B which have a common substitution C as a subtrees).  Unchanged
+ * subtrees are shared with the tree it was made from too, so these trees must
+ * not be mutated.
+ *
+ * Everything is indexed by the node's position in a pre-order traversal, and
+ * each node carries a fingerprint of its subtree where substitution roots are
+ * marked.  Two states with the same <code>fingerprint</code> have the same tree
+ * and the same substitutions, so they have the same future in a search.
+ *
+ * @author david
+ *
+ */
+class SubstitutedTree {
+	public final Tree tree;
+	public final int substitutionCount;
+	public final long fingerprint;
+
+	private final Tree[] nodes;				// pre-order
+	private final int[] parent;				// -1 for the root
+	private final int[] childIndex;			// position of the node among its parent's children
+	private final int[] size;				// number of nodes in the subtree
+	private final boolean[] substituted;	// true if the node is the root of a substitution
+	private final boolean[] covered;		// true if the node is in a substitution
+	private final long[] fingerprints;
+
+	public SubstitutedTree(Tree tree) {
+		this(tree, new boolean[TreeIndex.countNodes(tree)], 0);
+	}
+
+	private SubstitutedTree(Tree tree, boolean[] substituted, int substitutionCount) {
+		this.tree = tree;
+		this.substitutionCount = substitutionCount;
+		this.substituted = substituted;
+		int n = substituted.length;
+		this.nodes = new Tree[n];
+		this.parent = new int[n];
+		this.childIndex = new int[n];
+		this.size = new int[n];
+		this.covered = new boolean[n];
+		this.fingerprints = new long[n];
+		index(tree, -1, 0, 0, false);
+		this.fingerprint = fingerprints[0];
+	}
+
+	/**
+	 * Fills in the arrays for the subtree rooted at <code>node</code>.
+	 * @return the pre-order index after the subtree
+	 */
+	private int index(Tree node, int parentIndex, int ci, int i, boolean inSubstitution) {
+		int self = i;
+		nodes[self] = node;
+		parent[self] = parentIndex;
+		childIndex[self] = ci;
+		covered[self] = inSubstitution || substituted[self];
+
+		Tree[] kids = node.children();
+		long h = Fingerprints.nodeStart(node.value());
+		i++;
+		for (int k=0; k<kids.length; k++) {
+			int child = i;
+			i = index(kids[k], self, k, i, covered[self]);
+			h = Fingerprints.nodeChild(h, fingerprints[child]);
+		}
+		h = Fingerprints.nodeEnd(h, kids.length);
+		fingerprints[self] = substituted[self] ? Fingerprints.mark(h) : h;
+		size[self] = i - self;
+		return i;
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	public Tree node(int i) {
+		return nodes[i];
+	}
+
+	public List<Tree> nodes() {
+		return Arrays.asList(nodes);
+	}
+
+	/**
+	 * True if node <code>i</code> is a substitution or inside one.  We disallow nested
+	 * substitutions, so these nodes can't be replaced.
+	 */
+	public boolean isCovered(int i) {
+		return covered[i];
+	}
+
+	/**
+	 * The fingerprint this state would have if node <code>i</code> were replaced
+	 * with a substitution whose (unmarked) fingerprint is <code>substitutionFingerprint</code>.
+	 * Only the path from <code>i</code> to the root is looked at.
+	 */
+	public long fingerprintWith(int i, long substitutionFingerprint) {
+		long h = Fingerprints.mark(substitutionFingerprint);
+		int j = i;
+		while (parent[j] != -1) {
+			int p = parent[j];
+			long ph = Fingerprints.nodeStart(nodes[p].value());
+			int child = p + 1;
+			int childCount = nodes[p].children().length;
+			for (int k=0; k<childCount; k++) {
+				ph = Fingerprints.nodeChild(ph, child == j ? h : fingerprints[child]);
+				child += size[child];
+			}
+			h = Fingerprints.nodeEnd(ph, childCount);
+			j = p;
+		}
+		return h;
+	}
+
+	/**
+	 * Makes the state where node <code>i</code> is replaced by <code>substitution</code>.
+	 * Only the ancestors of <code>i</code> are copied, everything else is shared.
+	 */
+	public SubstitutedTree substitute(int i, Tree substitution) {
+		Tree cur = substitution;
+		for (int j = i; parent[j] != -1; j = parent[j]) {
+			Tree p = nodes[parent[j]];
+			List<Tree> kids = Lists.newArrayList(p.children());
+			kids.set(childIndex[j], cur);
+			cur = p.treeFactory().newTreeNode(p.label(), kids);
+		}
+
+		int substitutionSize = TreeIndex.countNodes(substitution);
+		int n = nodes.length - size[i] + substitutionSize;
+		boolean[] marks = new boolean[n];
+		System.arraycopy(substituted, 0, marks, 0, i);
+		marks[i] = true;
+		System.arraycopy(substituted, i + size[i], marks, i + substitutionSize, nodes.length - i - size[i]);
+		return new SubstitutedTree(cur, marks, substitutionCount + 1);
+	}
+
+	@Override
+	public String toString() {
+		return tree.toString() + " with " + substitutionCount + " substitutions";
+	}
+
+}
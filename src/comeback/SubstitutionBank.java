@@ -0,0 +1,107 @@
+package comeback;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.SetMultimap;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * An immutable substitution bank loaded from one file, with one phrase per line.
+ *
+ * Trees are indexed by root label.  Each line is parsed, ROOT and FRAG wrappers are
+ * flattened away, and a sentence (S) contributes each of its children separately.
+ *
+ * @author david
+ *
+ */
+public class SubstitutionBank {
+	public final String name;
+	public final File file;
+	public final double weight;				// how much to favour this bank's limbs when sampling
+	public final long lastModified;			// of file when it was read
+
+	private final ImmutableMap<String, Set<Tree>> index;	// key: root label, value: trees with that root label
+	private final long version;
+
+	private SubstitutionBank(String name, File file, double weight, long lastModified,
+			ImmutableMap<String, Set<Tree>> index) {
+		this.name = name;
+		this.file = file;
+		this.weight = weight;
+		this.lastModified = lastModified;
+		this.index = index;
+		this.version = LimbventoryCache.bankVersion(index);
+	}
+
+	public static SubstitutionBank load(String name, File file, double weight, Function<String, Tree> parser)
+			throws IOException {
+		Preconditions.checkArgument(weight > 0, "bank weight must be positive");
+		long lastModified = file.lastModified();
+		SetMultimap<String, Tree> bank = LinkedHashMultimap.create();
+		BufferedReader in = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while ((line = in.readLine()) != null) {
+				Tree parse = parser.apply(line);
+
+				// Flatten away ROOT and FRAGs
+				while (parse.value().equals("ROOT") || parse.value().equals("FRAG")) {
+					parse = parse.firstChild();
+				}
+
+				// Take out S
+				if (parse.value().equals("S")) {
+					for (Tree child : parse.children())
+						bank.put(child.value(), child);
+				} else {
+					bank.put(parse.value(), parse);
+				}
+			}
+		} finally {
+			in.close();
+		}
+
+		ImmutableMap.Builder<String, Set<Tree>> index = ImmutableMap.builder();
+		for (Map.Entry<String, Collection<Tree>> entry : bank.asMap().entrySet())
+			index.put(entry.getKey(), ImmutableSet.copyOf(entry.getValue()));
+		return new SubstitutionBank(name, file, weight, lastModified, index.build());
+	}
+
+	public ImmutableMap<String, Set<Tree>> index() {
+		return index;
+	}
+
+	/**
+	 * Fingerprint of the bank's trees (see <code>LimbventoryCache.bankVersion</code>)
+	 */
+	public long version() {
+		return version;
+	}
+
+	/**
+	 * True if the file changed since it was loaded
+	 */
+	public boolean isStale() {
+		return file.lastModified() != lastModified;
+	}
+
+	@Override
+	public String toString() {
+		int size = 0;
+		for (Set<Tree> trees : index.values())
+			size += trees.size();
+		return name + " (" + size + " trees, weight " + weight + ")";
+	}
+}
@@ -0,0 +1,163 @@
+package comeback;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import util.Fingerprints;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * Breadth first search over the trees that can be made from a root by applying
+ * substitutions one at a time.
+ *
+ * A substitution replaces a subtree <code>T</code> of the current tree under these conditions:
+ * <ul>
+ * <li> <code>T</code> is not a subtree of any substitution made before. This is to prevent nested substitutions.
+ * <li> Replacing <code>T</code> with the substitution is valid according to the rules
+ * </ul>
+ *
+ * The same tree is usually reachable through many substitution orders, so every state is
+ * deduplicated by its fingerprint.  The fingerprint of a candidate is computed before the
+ * candidate is built, so duplicates cost a walk up to the root rather than a copy.
+ *
+ * Each level of the search is expanded in parallel when an executor is given.  Every
+ * new state is admitted by a {@link GenerationBudget} before it's built, so the search
+ * stops at the budget's limit, deadline or cancellation like the other generators.
+ *
+ * @author david
+ *
+ */
+public class SubstitutionSearch {
+	private static final int CHUNK_SIZE = 64;		// frontier states per task
+
+	private final ReplacementRules rules;
+	private final int maxSubstitutions;
+	private final ExecutorService executor;
+
+	/**
+	 * @param rules
+	 * @param maxSubstitutions
+	 * 		most substitutions in one tree (the search depth)
+	 * @param executor
+	 * 		used to expand the frontier, or null to do it on the calling thread
+	 */
+	public SubstitutionSearch(ReplacementRules rules, int maxSubstitutions, ExecutorService executor) {
+		Preconditions.checkArgument(maxSubstitutions >= 0);
+		this.rules = rules;
+		this.maxSubstitutions = maxSubstitutions;
+		this.executor = executor;
+	}
+
+	/**
+	 * Returns every tree with at least one substitution that can be reached from
+	 * <code>root</code> within <code>maxSubstitutions</code> and the budget, shallowest
+	 * first.  <code>root</code> itself isn't included.
+	 */
+	public Set<SubstitutedTree> search(Tree root, Collection<Tree> substitutions, GenerationBudget budget) {
+		List<Tree> usable = Lists.newArrayList();
+		List<Long> usableFingerprints = Lists.newArrayList();
+		for (Tree substitution : substitutions) {
+			if (!rules.isSubstitutable(substitution)) continue;
+			usable.add(substitution);
+			usableFingerprints.add(Fingerprints.of(substitution));
+		}
+
+		SubstitutedTree init = new SubstitutedTree(root);
+		Set<Long> visited = Sets.newSetFromMap(new ConcurrentHashMap<Long, Boolean>());
+		visited.add(init.fingerprint);
+
+		Set<SubstitutedTree> ret = Sets.newLinkedHashSet();
+		List<SubstitutedTree> frontier = Lists.newArrayList(init);
+		for (int depth = 0; depth < maxSubstitutions && !frontier.isEmpty(); depth++) {
+			if (budget.isExhausted()) {
+				// stands in for the trees the frontier would have led to
+				budget.drop(frontier.size());
+				break;
+			}
+			frontier = expandLevel(frontier, usable, usableFingerprints, visited, budget);
+			ret.addAll(frontier);
+		}
+		return ret;
+	}
+
+	private List<SubstitutedTree> expandLevel(List<SubstitutedTree> frontier, List<Tree> substitutions,
+			List<Long> substitutionFingerprints, Set<Long> visited, GenerationBudget budget) {
+		List<SubstitutedTree> next = Lists.newArrayList();
+		if (executor == null || frontier.size() <= CHUNK_SIZE) {
+			for (SubstitutedTree state : frontier)
+				expand(state, substitutions, substitutionFingerprints, visited, budget, next);
+			return next;
+		}
+
+		List<Future<List<SubstitutedTree>>> futures = Lists.newArrayList();
+		for (final List<SubstitutedTree> chunk : Lists.partition(frontier, CHUNK_SIZE)) {
+			futures.add(executor.submit(new ExpandTask(chunk, substitutions, substitutionFingerprints, visited, budget)));
+		}
+		try {
+			for (Future<List<SubstitutedTree>> future : futures)
+				next.addAll(future.get());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		return next;
+	}
+
+	private class ExpandTask implements Callable<List<SubstitutedTree>> {
+		private final List<SubstitutedTree> states;
+		private final List<Tree> substitutions;
+		private final List<Long> substitutionFingerprints;
+		private final Set<Long> visited;
+		private final GenerationBudget budget;
+
+		public ExpandTask(List<SubstitutedTree> states, List<Tree> substitutions,
+				List<Long> substitutionFingerprints, Set<Long> visited, GenerationBudget budget) {
+			this.states = states;
+			this.substitutions = substitutions;
+			this.substitutionFingerprints = substitutionFingerprints;
+			this.visited = visited;
+			this.budget = budget;
+		}
+
+		@Override
+		public List<SubstitutedTree> call() {
+			List<SubstitutedTree> ret = Lists.newArrayList();
+			for (SubstitutedTree state : states)
+				expand(state, substitutions, substitutionFingerprints, visited, budget, ret);
+			return ret;
+		}
+	}
+
+	/**
+	 * Adds every unvisited state one substitution away from <code>state</code> to <code>out</code>,
+	 * as long as the budget admits them
+	 */
+	private void expand(SubstitutedTree state, List<Tree> substitutions, List<Long> substitutionFingerprints,
+			Set<Long> visited, GenerationBudget budget, List<SubstitutedTree> out) {
+		for (int s=0; s<substitutions.size(); s++) {
+			if (budget.isCancelled() || budget.isTimedOut()) return;
+			Tree substitution = substitutions.get(s);
+			long substitutionFingerprint = substitutionFingerprints.get(s);
+			for (int i=0; i<state.size(); i++) {
+				if (state.isCovered(i)) continue;
+				if (!rules.isValid(state.node(i), substitution)) continue;
+				if (!visited.add(state.fingerprintWith(i, substitutionFingerprint))) continue;
+				if (!budget.admit()) continue;
+				out.add(state.substitute(i, substitution));
+			}
+		}
+	}
+}
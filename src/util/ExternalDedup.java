@@ -0,0 +1,255 @@
+package util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Removes duplicates from more records than fit on the heap.  Records are kept in
+ * memory by fingerprint until there are <code>threshold</code> of them, then written
+ * out as a run sorted by fingerprint and forgotten.  <code>finish</code> merges the runs
+ * (and whatever is still in memory) and hands each fingerprint's record out once, in
+ * fingerprint order, so the heap never holds more than <code>threshold</code> records
+ * plus one per run.
+ *
+ * Records with the same fingerprint are taken to be the same record, the way the
+ * fingerprint sets elsewhere treat them.  The first one added is the one kept.
+ *
+ * Run layout (big endian): <code>{ long fingerprint, int length, length bytes of UTF-8 }</code>
+ * until the end of the file.
+ *
+ * @author david
+ *
+ */
+public class ExternalDedup {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	public interface RecordFn {
+		public void apply(long fingerprint, String record);
+	}
+
+	private final int threshold;
+	private final File directory;					// null for the default temporary directory
+	private final Map<Long, String> memory = Maps.newHashMap();
+	private final List<File> runs = Lists.newArrayList();
+	private long spilled = 0;
+
+	/**
+	 * @param threshold
+	 * 		most records to hold in memory before spilling them
+	 * @param directory
+	 * 		where runs are written, or null for the default temporary directory
+	 */
+	public ExternalDedup(int threshold, File directory) {
+		this.threshold = Math.max(1, threshold);
+		this.directory = directory;
+	}
+
+	/**
+	 * @return false if a record with this fingerprint is already in memory (it may
+	 * still be in a run, which only <code>finish</code> finds out)
+	 */
+	public synchronized boolean add(long fingerprint, String record) throws IOException {
+		if (memory.containsKey(fingerprint))
+			return false;
+		memory.put(fingerprint, record);
+		if (memory.size() >= threshold)
+			spill();
+		return true;
+	}
+
+	private void spill() throws IOException {
+		File run = File.createTempFile("dedup", ".run", directory);
+		run.deleteOnExit();
+		runs.add(run);
+		DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+		try {
+			for (Map.Entry<Long, String> entry : sorted()) {
+				byte[] bytes = entry.getValue().getBytes(UTF8);
+				out.writeLong(entry.getKey());
+				out.writeInt(bytes.length);
+				out.write(bytes);
+			}
+		} finally {
+			out.close();
+		}
+		spilled += memory.size();
+		memory.clear();
+	}
+
+	private List<Map.Entry<Long, String>> sorted() {
+		List<Map.Entry<Long, String>> ret = Lists.newArrayList(memory.entrySet());
+		Collections.sort(ret, new Comparator<Map.Entry<Long, String>>() {
+			@Override
+			public int compare(Map.Entry<Long, String> a, Map.Entry<Long, String> b) {
+				return a.getKey().compareTo(b.getKey());
+			}
+		});
+		return ret;
+	}
+
+	/**
+	 * Number of runs written to disk so far
+	 */
+	public synchronized int runs() {
+		return runs.size();
+	}
+
+	/**
+	 * Records written to disk so far, duplicates between runs included
+	 */
+	public synchronized long spilled() {
+		return spilled;
+	}
+
+	/**
+	 * Hands every distinct record to <code>fn</code> in fingerprint order, then deletes the runs.
+	 * @return the number of distinct records
+	 */
+	public synchronized long finish(RecordFn fn) throws IOException {
+		PriorityQueue<Source> queue = new PriorityQueue<Source>();
+		try {
+			Source inMemory = new MemorySource(sorted(), runs.size());
+			if (inMemory.advance())
+				queue.add(inMemory);
+			for (int i=0; i<runs.size(); i++) {
+				Source run = new RunSource(runs.get(i), i);
+				if (run.advance())
+					queue.add(run);
+				else
+					run.close();
+			}
+			long ret = 0;
+			boolean first = true;
+			long last = 0;
+			while (!queue.isEmpty()) {
+				Source source = queue.poll();
+				if (first || source.fingerprint != last) {
+					fn.apply(source.fingerprint, source.record);
+					last = source.fingerprint;
+					first = false;
+					ret++;
+				}
+				if (source.advance())
+					queue.add(source);
+				else
+					source.close();
+			}
+			return ret;
+		} finally {
+			for (Source source : queue)
+				source.close();
+			memory.clear();
+			delete();
+		}
+	}
+
+	/**
+	 * Deletes the runs without merging them
+	 */
+	public synchronized void delete() {
+		for (File run : runs)
+			run.delete();
+		runs.clear();
+	}
+
+	/**
+	 * Sorted records, read one at a time.  Ties go to the earlier source, so the first
+	 * record added with a fingerprint is the one kept.
+	 */
+	private static abstract class Source implements Comparable<Source> {
+		private final int order;
+		public long fingerprint;
+		public String record;
+
+		protected Source(int order) {
+			this.order = order;
+		}
+
+		/**
+		 * Moves to the next record
+		 * @return false if there isn't one
+		 */
+		public abstract boolean advance() throws IOException;
+
+		public void close() {
+		}
+
+		@Override
+		public int compareTo(Source other) {
+			if (fingerprint != other.fingerprint)
+				return fingerprint < other.fingerprint ? -1 : 1;
+			return order < other.order ? -1 : order > other.order ? 1 : 0;
+		}
+	}
+
+	/**
+	 * The records still in memory, which were added after every run
+	 */
+	private static final class MemorySource extends Source {
+		private final Iterator<Map.Entry<Long, String>> entries;
+
+		public MemorySource(List<Map.Entry<Long, String>> entries, int order) {
+			super(order);
+			this.entries = entries.iterator();
+		}
+
+		@Override
+		public boolean advance() {
+			if (!entries.hasNext())
+				return false;
+			Map.Entry<Long, String> entry = entries.next();
+			fingerprint = entry.getKey();
+			record = entry.getValue();
+			return true;
+		}
+	}
+
+	private static final class RunSource extends Source {
+		private final DataInputStream in;
+
+		public RunSource(File run, int order) throws IOException {
+			super(order);
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+		}
+
+		@Override
+		public boolean advance() throws IOException {
+			try {
+				fingerprint = in.readLong();
+			} catch (EOFException e) {
+				return false;
+			}
+			byte[] bytes = new byte[in.readInt()];
+			in.readFully(bytes);
+			record = new String(bytes, UTF8);
+			return true;
+		}
+
+		@Override
+		public void close() {
+			try {
+				in.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
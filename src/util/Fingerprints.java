@@ -0,0 +1,80 @@
+package util;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * 64 bit FNV-1a fingerprints.  These are used as cheap, stable identities for
+ * things like rule sets where hashCode() is too weak or not stable across runs.
+ *
+ * Trees are fingerprinted bottom up (each node mixes its label with its children's
+ * fingerprints), so the fingerprint of a tree with one subtree swapped out can be
+ * recomputed along the path to the root without looking at the rest of the tree.
+ *
+ * @author david
+ *
+ */
+public class Fingerprints {
+	public static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	public static final long FNV_PRIME = 0x100000001b3L;
+
+	public static long fnv64(String s) {
+		return fnv64(FNV_OFFSET, s);
+	}
+
+	/**
+	 * Continues the fingerprint <code>h</code> with the characters of <code>s</code>
+	 * @param h
+	 * @param s
+	 * @return
+	 */
+	public static long fnv64(long h, String s) {
+		for (int i=0; i<s.length(); i++) {
+			char c = s.charAt(i);
+			h ^= (c & 0xff);
+			h *= FNV_PRIME;
+			h ^= (c >>> 8);
+			h *= FNV_PRIME;
+		}
+		return h;
+	}
+
+	public static long mix(long h, long v) {
+		for (int i=0; i<8; i++) {
+			h ^= (v & 0xff);
+			h *= FNV_PRIME;
+			v >>>= 8;
+		}
+		return h;
+	}
+
+	/**
+	 * Structural fingerprint of <code>tree</code>.  Trees which are equal()
+	 * have the same fingerprint.
+	 */
+	public static long of(Tree tree) {
+		Tree[] kids = tree.children();
+		long h = nodeStart(tree.value());
+		for (Tree kid : kids)
+			h = nodeChild(h, of(kid));
+		return nodeEnd(h, kids.length);
+	}
+
+	public static long nodeStart(String label) {
+		return label == null ? FNV_OFFSET : fnv64(label);
+	}
+
+	public static long nodeChild(long h, long childFingerprint) {
+		return mix(h, childFingerprint);
+	}
+
+	public static long nodeEnd(long h, int childCount) {
+		return mix(h, childCount);
+	}
+
+	/**
+	 * Tags a fingerprint so that marked and unmarked copies of the same tree differ.
+	 */
+	public static long mark(long h) {
+		return mix(h ^ 0x9e3779b97f4a7c15L, -1L);
+	}
+}
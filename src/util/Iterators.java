@@ -28,8 +28,11 @@ public class Iterators {
 			return new PowerSetIterator<T>(set);
 		}
 		
-		public int size() {
-			return (1 << set.size());
+		/**
+		 * Number of subsets, saturating at <code>Long.MAX_VALUE</code>
+		 */
+		public long size() {
+			return set.size() >= 63 ? Long.MAX_VALUE : (1L << set.size());
 		}
 	}
 	
@@ -107,7 +110,7 @@ public class Iterators {
 		}
 		
 		public long size() {
-			if (size == Integer.MIN_VALUE)
+			if (size == Long.MIN_VALUE)
 				size = new CartesianCollectionIterator<T>(subspaces).size();
 			return size;
 		}
@@ -228,14 +231,42 @@ public class Iterators {
 			// unsupported
 		}
 
-		// returns size of cartesian space
+		/**
+		 * Returns the number of points this iterates over, saturating at <code>Long.MAX_VALUE</code>.
+		 * Empty subspaces only contribute a null coordinate, so they count as 1 unless every
+		 * subspace is empty.
+		 */
 		public long size() {
 			long size = 1;
-			for (int i=0; i<subspacesAsCollections.size(); i++)
-				size *= subspacesAsCollections.get(i).size();
-			return size;
+			boolean allEmpty = true;
+			for (int i=0; i<subspacesAsCollections.size(); i++) {
+				int subspaceSize = subspacesAsCollections.get(i).size();
+				if (subspaceSize == 0) continue;
+				allEmpty = false;
+				size = saturatedMultiply(size, subspaceSize);
+			}
+			return allEmpty ? 0 : size;
 		}
 
 	}
+	
+	/**
+	 * a * b for non-negative a and b, or <code>Long.MAX_VALUE</code> if that overflows
+	 */
+	public static long saturatedMultiply(long a, long b) {
+		if (a == 0 || b == 0)
+			return 0;
+		if (a > Long.MAX_VALUE / b)
+			return Long.MAX_VALUE;
+		return a * b;
+	}
+	
+	/**
+	 * a + b for non-negative a and b, or <code>Long.MAX_VALUE</code> if that overflows
+	 */
+	public static long saturatedAdd(long a, long b) {
+		long ret = a + b;
+		return ret < 0 ? Long.MAX_VALUE : ret;
+	}
 
 }
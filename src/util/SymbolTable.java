@@ -0,0 +1,63 @@
+package util;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * Interns strings into dense int symbols so that hot loops can compare
+ * ints and index arrays instead of hashing and comparing strings.
+ *
+ * Symbols are handed out in order starting from 0 and are never reused.  Looking
+ * up a name that already has a symbol doesn't lock.
+ *
+ * @author david
+ *
+ */
+public class SymbolTable {
+	public static final int NO_SYMBOL = -1;
+
+	private final ConcurrentMap<String, Integer> symbols = Maps.newConcurrentMap();
+	private final List<String> names = Lists.newArrayList();		// guarded by this
+
+	/**
+	 * Returns the symbol for <code>name</code>, creating one if it hasn't been seen.
+	 * @param name
+	 * @return
+	 */
+	public int intern(String name) {
+		Integer symbol = symbols.get(name);
+		return symbol != null ? symbol : add(name);
+	}
+
+	private synchronized int add(String name) {
+		Integer symbol = symbols.get(name);
+		if (symbol != null)
+			return symbol;
+		int ret = names.size();
+		names.add(name);
+		symbols.put(name, ret);
+		return ret;
+	}
+
+	/**
+	 * Returns the symbol for <code>name</code> or <code>NO_SYMBOL</code> if it
+	 * was never interned.  Never creates a new symbol.
+	 * @param name
+	 * @return
+	 */
+	public int lookup(String name) {
+		Integer symbol = symbols.get(name);
+		return symbol == null ? NO_SYMBOL : symbol;
+	}
+
+	public synchronized String name(int symbol) {
+		return names.get(symbol);
+	}
+
+	public synchronized int size() {
+		return names.size();
+	}
+}
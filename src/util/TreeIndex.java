@@ -0,0 +1,198 @@
+package util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Maps;
+
+import edu.stanford.nlp.trees.Tree;
+
+/**
+ * A tree flattened into pre-order arrays, so walking it or finding a node's
+ * relatives is array indexing instead of list building and subtree searches.
+ *
+ * Nodes are looked up by identity.  Stanford's <code>Tree</code> hashes and compares
+ * structurally, so a <code>HashMap&lt;Tree, ?&gt;</code> walks a subtree on every
+ * lookup and sends identical subtrees of one sentence to the same entry.
+ *
+ * The subtree of node <code>i</code> is the range <code>[i, end(i))</code>, so
+ * ancestry is two int compares.
+ *
+ * <code>of(root)</code> caches the index by the root's identity for as long as
+ * someone holds on to it, which assumes the tree isn't mutated after it's first indexed.
+ *
+ * @author david
+ *
+ */
+public class TreeIndex {
+	// weak values too, since an index holds on to its root
+	private static final ConcurrentMap<Tree, TreeIndex> cache = new MapMaker().weakKeys().weakValues().makeMap();
+
+	public interface Visitor {
+		/**
+		 * @return false to skip the children of <code>node</code>
+		 */
+		public boolean visit(Tree node, int index, int depth);
+	}
+
+	private final Tree[] nodes;			// pre-order
+	private final int[] parent;			// -1 for the root
+	private final int[] childIndex;		// position of the node among its parent's children
+	private final int[] end;			// one past the last node of the subtree
+	private final int[] depth;
+	private final Map<Tree, Integer> indices = Maps.newIdentityHashMap();
+	private final int[] levelOrder;		// pre-order indices level by level
+
+	private TreeIndex(Tree root) {
+		int n = countNodes(root);
+		this.nodes = new Tree[n];
+		this.parent = new int[n];
+		this.childIndex = new int[n];
+		this.end = new int[n];
+		this.depth = new int[n];
+		index(root, -1, 0, 0, 0);
+		this.levelOrder = levelOrder(depth);
+	}
+
+	private int index(Tree node, int parentIndex, int ci, int d, int i) {
+		int self = i;
+		nodes[self] = node;
+		parent[self] = parentIndex;
+		childIndex[self] = ci;
+		depth[self] = d;
+		indices.put(node, self);
+		Tree[] kids = node.children();
+		i++;
+		for (int k=0; k<kids.length; k++)
+			i = index(kids[k], self, k, d + 1, i);
+		end[self] = i;
+		return i;
+	}
+
+	/**
+	 * The index of <code>root</code>, built the first time it's asked for
+	 */
+	public static TreeIndex of(Tree root) {
+		TreeIndex ret = cache.get(root);
+		if (ret == null) {
+			ret = new TreeIndex(root);
+			TreeIndex old = cache.putIfAbsent(root, ret);
+			if (old != null)
+				ret = old;
+		}
+		return ret;
+	}
+
+	public static int countNodes(Tree tree) {
+		int count = 1;
+		for (Tree kid : tree.children())
+			count += countNodes(kid);
+		return count;
+	}
+
+	public int size() {
+		return nodes.length;
+	}
+
+	public Tree root() {
+		return nodes[0];
+	}
+
+	public Tree node(int i) {
+		return nodes[i];
+	}
+
+	/**
+	 * The nodes in pre-order, same as <code>root().preOrderNodeList()</code> but not copied
+	 */
+	public List<Tree> nodes() {
+		return Collections.unmodifiableList(Arrays.asList(nodes));
+	}
+
+	/**
+	 * Pre-order index of this very node (not an equal one), or -1 if it isn't in the tree
+	 */
+	public int indexOf(Tree node) {
+		Integer ret = indices.get(node);
+		return ret == null ? -1 : ret;
+	}
+
+	public int parent(int i) {
+		return parent[i];
+	}
+
+	public int childIndex(int i) {
+		return childIndex[i];
+	}
+
+	public int depth(int i) {
+		return depth[i];
+	}
+
+	/**
+	 * One past the last node in the subtree of <code>i</code>
+	 */
+	public int end(int i) {
+		return end[i];
+	}
+
+	public int subtreeSize(int i) {
+		return end[i] - i;
+	}
+
+	/**
+	 * True if <code>i</code> is a proper ancestor of <code>j</code>
+	 */
+	public boolean dominates(int i, int j) {
+		return i < j && j < end[i];
+	}
+
+	/**
+	 * Visits every node in pre-order
+	 */
+	public void preOrder(Visitor visitor) {
+		int i = 0;
+		while (i < nodes.length)
+			i = visitor.visit(nodes[i], i, depth[i]) ? i + 1 : end[i];
+	}
+
+	/**
+	 * Visits every node level by level, left to right within a level
+	 */
+	public void breadthFirst(Visitor visitor) {
+		boolean[] skipped = null;
+		for (int i : levelOrder) {
+			if (skipped != null && parent[i] >= 0 && skipped[parent[i]]) {
+				skipped[i] = true;
+				continue;
+			}
+			if (!visitor.visit(nodes[i], i, depth[i])) {
+				if (skipped == null)
+					skipped = new boolean[nodes.length];
+				skipped[i] = true;
+			}
+		}
+	}
+
+	/**
+	 * Pre-order indices sorted by depth; a counting sort keeps pre-order (left to right) within a level
+	 */
+	private static int[] levelOrder(int[] depth) {
+		int maxDepth = 0;
+		for (int d : depth)
+			maxDepth = Math.max(maxDepth, d);
+		int[] starts = new int[maxDepth + 2];
+		for (int d : depth)
+			starts[d + 1]++;
+		for (int d=1; d<starts.length; d++)
+			starts[d] += starts[d - 1];
+		int[] ret = new int[depth.length];
+		for (int i=0; i<depth.length; i++)
+			ret[starts[depth[i]]++] = i;
+		return ret;
+	}
+}
@@ -0,0 +1,114 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class BankRegistryTest {
+
+	/**
+	 * Bank lines in these tests are already trees
+	 */
+	private static final Function<String, Tree> READ_TREE = new Function<String, Tree>() {
+		@Override
+		public Tree apply(String line) {
+			return Tree.valueOf(line);
+		}
+	};
+
+	private static File write(File file, String... lines) throws IOException {
+		long before = file.lastModified();
+		StringBuilder contents = new StringBuilder();
+		for (String line : lines)
+			contents.append(line).append("\n");
+		Files.write(contents, file, Charset.forName("UTF-8"));
+		// file times can be as coarse as a second
+		if (file.lastModified() == before)
+			file.setLastModified(before + 2000);
+		return file;
+	}
+
+	private static List<String> nps(BankRegistry.Snapshot snapshot) {
+		List<String> ret = Lists.newArrayList();
+		for (Tree tree : snapshot.candidates("NP", null))
+			ret.add(tree.toString());
+		return ret;
+	}
+
+	@Test
+	public void ReloadTest() throws IOException {
+		File bank = write(new File(Files.createTempDir(), "bank"), "(NP (DT a) (NN drum))");
+		BankRegistry registry = new BankRegistry(READ_TREE);
+		registry.add("bank", bank, 1.0);
+		BankRegistry.Snapshot before = registry.snapshot();
+		assertEquals(0, registry.reloadChanged());
+
+		write(bank, "(NP (DT a) (NN drum))", "(NP (DT some) (NN lube))");
+		assertEquals(1, registry.reloadChanged());
+		assertEquals(Lists.newArrayList("(NP (DT a) (NN drum))", "(NP (DT some) (NN lube))"), nps(registry.snapshot()));
+		assertTrue(before.version() != registry.snapshot().version());
+		// a snapshot someone still holds doesn't change
+		assertEquals(Lists.newArrayList("(NP (DT a) (NN drum))"), nps(before));
+	}
+
+	@Test
+	public void DeletedTest() throws IOException {
+		File bank = write(new File(Files.createTempDir(), "bank"), "(NP (DT a) (NN drum))");
+		BankRegistry registry = new BankRegistry(READ_TREE);
+		registry.add("bank", bank, 1.0);
+		BankRegistry.Snapshot before = registry.snapshot();
+		long loaded = bank.lastModified();
+
+		assertTrue(bank.delete());
+		assertEquals(0, registry.reloadChanged());
+		assertEquals(0, registry.reloadChanged());
+		assertSame(before, registry.snapshot());
+
+		write(bank, "(NP (DT some) (NN lube))");
+		// written back within the same file time tick it was loaded at, it wouldn't look changed
+		if (bank.lastModified() == loaded)
+			bank.setLastModified(loaded + 2000);
+		assertEquals(1, registry.reloadChanged());
+		assertEquals(Lists.newArrayList("(NP (DT some) (NN lube))"), nps(registry.snapshot()));
+	}
+
+	@Test
+	public void WeightedSampleTest() throws IOException {
+		File dir = Files.createTempDir();
+		BankRegistry registry = new BankRegistry(READ_TREE);
+		registry.add("often", write(new File(dir, "often"), "(NP (DT a) (NN drum))"), 3.0);
+		registry.add("rarely", write(new File(dir, "rarely"), "(NP (DT some) (NN lube))"), 1.0);
+		BankRegistry.Snapshot snapshot = registry.snapshot();
+
+		// only the NP can be replaced, by either bank's tree
+		Tree template = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBZ barks)))");
+		List<Set<Tree>> limbs = Lists.newArrayList();
+		for (Tree node : template.preOrderNodeList())
+			limbs.add(node.value().equals("NP") ? ImmutableSet.copyOf(snapshot.candidates("NP", null)) : ImmutableSet.<Tree>of());
+		SearchSpace space = new SearchSpace(template, limbs, snapshot.weights());
+		assertEquals(2, space.size());
+
+		Random rng = new Random(0);
+		int often = 0;
+		for (int i=0; i<4000; i++)
+			if (space.sample(rng).get(1).toString().equals("(NP (DT a) (NN drum))"))
+				often++;
+		assertEquals(0.75, often / 4000.0, 0.03);
+	}
+}
@@ -0,0 +1,104 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class CompactBankTest {
+
+	private static final ReplacementRules RULES = new ReplacementRules.Builder()
+			.labelClass("phrase", "VP", "NP")
+			.requireSameFirstChild("phrase")
+			.substitutable("phrase")
+			.restrict("you")
+			.compile();
+
+	private static final List<Tree> TREES = Lists.newArrayList(
+			Tree.valueOf("(NP (DT a) (NN drum))"),
+			Tree.valueOf("(NP (DT some) (NN lube))"),
+			Tree.valueOf("(NP (DT a) (NN drum))"),
+			Tree.valueOf("(NP (NN lube))"),
+			Tree.valueOf("(NP (DT a) (NN you))"));
+
+	private static final BankIndex BANK = new BankIndex() {
+		@Override
+		public Iterable<Tree> candidates(String rootLabel, String firstChildLabel) {
+			List<Tree> ret = Lists.newArrayList();
+			for (Tree tree : TREES)
+				if (tree.value().equals(rootLabel)
+						&& (firstChildLabel == null || tree.firstChild().value().equals(firstChildLabel)))
+					ret.add(tree);
+			return ret;
+		}
+
+		@Override
+		public long version() {
+			return 1;
+		}
+	};
+
+	@Test
+	public void ClassesTest() {
+		CompactBank bank = new CompactBank(BANK, RULES);
+		ImmutableList<CompactBank.LimbClass> classes = bank.classes("NP", null);
+		// determiner phrases, bare noun, restricted
+		assertEquals(3, classes.size());
+		assertEquals(2, classes.get(0).multiplicity());
+		assertEquals(1, classes.get(1).multiplicity());
+		assertEquals(1, classes.get(2).multiplicity());
+
+		assertEquals(2, bank.classes("NP", "DT").size());
+		assertEquals(0, bank.classes("VP", null).size());
+		assertEquals(4, Iterables.size(bank.candidates("NP", null)));
+	}
+
+	@Test
+	public void CacheTest() {
+		final int[] reads = {0};
+		BankIndex counting = new BankIndex() {
+			@Override
+			public Iterable<Tree> candidates(String rootLabel, String firstChildLabel) {
+				reads[0]++;
+				return BANK.candidates(rootLabel, firstChildLabel);
+			}
+
+			@Override
+			public long version() {
+				return BANK.version();
+			}
+		};
+		CompactBank cached = new CompactBank(counting, RULES);
+		assertSame(cached.classes("NP", "DT"), cached.classes("NP", "DT"));
+		assertEquals(1, reads[0]);
+
+		// too small for the 3 determiner phrases, so they're read again each time
+		CompactBank bounded = new CompactBank(counting, RULES, 2);
+		assertEquals(2, bounded.classes("NP", "DT").size());
+		assertEquals(2, bounded.classes("NP", "DT").size());
+		assertEquals(3, reads[0]);
+	}
+
+	@Test
+	public void LimbventoryTest() {
+		Tree template = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBD ate)))");
+		FrankenTreeFactory plain = new FrankenTreeFactory(template);
+		plain.buildLimbventory(BANK, RULES, new LimbventoryCache(100));
+		FrankenTreeFactory compact = new FrankenTreeFactory(template);
+		compact.buildLimbventory(new CompactBank(BANK, RULES), RULES, new LimbventoryCache(100));
+		assertEquals(plain.limbventory, compact.limbventory);
+		assertEquals(2, compact.searchSpace().size());
+		// the two determiner phrases are one class at the template's NP
+		assertEquals(2, plain.limbventory.classCount(1));
+		assertEquals(1, compact.limbventory.classCount(1));
+		assertEquals(2, compact.limbventory.count(1));
+	}
+}
@@ -0,0 +1,87 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class GenerationBudgetTest {
+
+	@Test
+	public void AdmitTest() {
+		GenerationBudget budget = new GenerationBudget(3);
+		for (int i=0; i<3; i++)
+			assertTrue(budget.admit());
+		assertTrue(budget.isExhausted());
+		assertFalse(budget.isTruncated());
+
+		assertFalse(budget.admit());
+		assertEquals(3, budget.kept());
+		assertEquals(1, budget.dropped());
+		assertTrue(budget.isTruncated());
+	}
+
+	@Test
+	public void SettleTest() {
+		GenerationBudget budget = new GenerationBudget(10);
+		budget.admit();
+		budget.admit();
+		budget.settle(7);
+		assertEquals(5, budget.dropped());
+
+		// never counts less than was already dropped
+		budget.drop(10);
+		budget.settle(7);
+		assertEquals(15, budget.dropped());
+	}
+
+	@Test
+	public void ForTemplateTest() {
+		GenerationBudget small = GenerationBudget.forTemplate(5);
+		GenerationBudget big = GenerationBudget.forTemplate(500);
+		assertTrue(big.maxResults() >= 1000);
+		assertTrue(small.maxResults() >= big.maxResults());
+	}
+
+	@Test
+	public void DeadlineTest() throws InterruptedException {
+		GenerationBudget budget = new GenerationBudget(10).withDeadline(1);
+		Thread.sleep(5);
+		assertTrue(budget.isExhausted());
+		assertTrue(budget.isTimedOut());
+		assertTrue(budget.isTruncated());
+		assertFalse(budget.admit());
+
+		GenerationBudget none = new GenerationBudget(10).withDeadline(0);
+		assertFalse(none.isExhausted());
+		assertFalse(none.isTimedOut());
+	}
+
+	@Test
+	public void CancelTest() {
+		Tree template = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBD ate)))");
+		FrankenTreeFactory factory = new FrankenTreeFactory(template);
+		List<Set<Tree>> limbs = Lists.newArrayList();
+		Tree drum = Tree.valueOf("(NP (DT a) (NN drum))");
+		Tree lube = Tree.valueOf("(NP (DT some) (NN lube))");
+		for (Tree node : template.preOrderNodeList())
+			limbs.add(node.value().equals("NP") ? ImmutableSet.of(drum, lube) : ImmutableSet.<Tree>of());
+		factory.limbventory = Limbventory.of(limbs);
+
+		GenerationBudget budget = new GenerationBudget(10);
+		budget.cancel();
+		assertTrue(factory.generateAllFrankenTrees(budget).isEmpty());
+		assertTrue(budget.isCancelled());
+		assertTrue(budget.isTruncated());
+		assertEquals(2, budget.dropped());
+	}
+}
@@ -0,0 +1,59 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.Callable;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class LimbventoryCacheTest {
+
+	/**
+	 * Counts its calls and returns the same limbs every time
+	 */
+	private static class CountingLoader implements Callable<ImmutableList<ImmutableSet<Tree>>> {
+		private final ImmutableList<ImmutableSet<Tree>> limbs = ImmutableList.of(ImmutableSet.of(Tree.valueOf("(NP (DT some) (NN lube))")));
+		private int calls = 0;
+
+		@Override
+		public ImmutableList<ImmutableSet<Tree>> call() {
+			calls++;
+			return limbs;
+		}
+	}
+
+	@Test
+	public void StructuralHitTest() {
+		LimbventoryCache cache = new LimbventoryCache(10);
+		CountingLoader loader = new CountingLoader();
+		ImmutableList<ImmutableSet<Tree>> limbs = cache.get(Tree.valueOf("(NP (DT a) (NN drum))"), 1, 1, loader);
+		// a different object with the same structure is a hit
+		assertSame(limbs, cache.get(Tree.valueOf("(NP (DT a) (NN drum))"), 1, 1, loader));
+		assertEquals(1, loader.calls);
+		assertEquals(1, cache.stats().hitCount());
+
+		cache.get(Tree.valueOf("(NP (DT a) (NN lube))"), 1, 1, loader);
+		assertEquals(2, loader.calls);
+	}
+
+	@Test
+	public void VersionMissTest() {
+		LimbventoryCache cache = new LimbventoryCache(10);
+		CountingLoader loader = new CountingLoader();
+		Tree drum = Tree.valueOf("(NP (DT a) (NN drum))");
+		cache.get(drum, 1, 1, loader);
+		cache.get(drum, 2, 1, loader);		// the bank changed
+		assertEquals(2, loader.calls);
+		cache.get(drum, 2, 3, loader);		// the rules changed
+		assertEquals(3, loader.calls);
+		cache.get(drum, 1, 1, loader);
+		assertEquals(3, loader.calls);
+		assertEquals(3, cache.stats().missCount());
+	}
+}
@@ -0,0 +1,94 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class LimbventoryTest {
+
+	private static final Tree DRUM = Tree.valueOf("(NP (DT a) (NN drum))");
+	private static final Tree LUBE = Tree.valueOf("(NP (DT some) (NN lube))");
+	private static final Tree LICKED = Tree.valueOf("(VBD licked)");
+
+	private static List<Set<Tree>> perNode() {
+		List<Set<Tree>> ret = Lists.newArrayList();
+		ret.add(ImmutableSet.<Tree>of());
+		ret.add(ImmutableSet.of(DRUM, LUBE));
+		ret.add(ImmutableSet.of(LICKED));
+		ret.add(ImmutableSet.<Tree>of());
+		ret.add(ImmutableSet.of(LUBE, DRUM));
+		return ret;
+	}
+
+	@Test
+	public void RowsTest() {
+		Limbventory limbventory = Limbventory.of(perNode());
+		assertEquals(5, limbventory.size());
+		assertEquals(0, limbventory.count(0));
+		assertEquals(2, limbventory.count(1));
+		assertEquals(2, limbventory.count(4));
+
+		// limbs shared between nodes get one id, in the order they were given
+		assertEquals(3, limbventory.limbCount());
+		assertEquals(limbventory.classId(1, 0), limbventory.classId(4, 1));
+		assertSame(LUBE, limbventory.limb(4, 0));
+		assertSame(DRUM, limbventory.limbClasses().get(limbventory.classId(1, 0)).get(0));
+		assertEquals(Lists.newArrayList(LUBE, DRUM), limbventory.limbs(4));
+		assertEquals(1, limbventory.indexOf(4, DRUM));
+		assertEquals(-1, limbventory.indexOf(2, DRUM));
+	}
+
+	@Test
+	public void ViewsTest() {
+		Limbventory limbventory = Limbventory.of(perNode());
+		assertEquals(perNode(), limbventory);
+		assertTrue(limbventory.get(2).contains(LICKED));
+		assertFalse(limbventory.get(3).contains(LICKED));
+		assertTrue(limbventory.get(3).isEmpty());
+
+		Limbventory empty = Limbventory.empty(3);
+		assertEquals(3, empty.size());
+		assertEquals(0, empty.count(2));
+		assertEquals(0, empty.limbCount());
+	}
+
+	@Test
+	public void ClassesTest() {
+		List<Set<Tree>> drumAndLube = ImmutableList.<Set<Tree>>of(ImmutableSet.of(DRUM, LUBE));
+		List<List<Set<Tree>>> perNode = Lists.newArrayList();
+		perNode.add(ImmutableList.<Set<Tree>>of());
+		perNode.add(drumAndLube);
+		perNode.add(ImmutableList.<Set<Tree>>of(ImmutableSet.of(LICKED)));
+		perNode.add(drumAndLube);
+		Limbventory limbventory = Limbventory.ofClasses(perNode);
+
+		assertEquals(1, limbventory.classCount(1));
+		assertEquals(2, limbventory.multiplicity(1, 0));
+		assertEquals(2, limbventory.count(1));
+		assertEquals(limbventory.classId(1, 0), limbventory.classId(3, 0));
+		assertEquals(2, limbventory.limbClasses().size());
+		assertEquals(3, limbventory.limbCount());
+		// read as limbs, a class is its members
+		assertSame(LUBE, limbventory.limb(3, 1));
+		assertEquals(1, limbventory.indexOf(3, LUBE));
+		assertEquals(Lists.newArrayList(DRUM, LUBE), limbventory.limbs(1));
+		assertEquals(perNode().subList(0, 3), limbventory.subList(0, 3));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void ImmutableTest() {
+		Limbventory.of(perNode()).get(1).add(LICKED);
+	}
+}
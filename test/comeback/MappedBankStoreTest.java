@@ -0,0 +1,77 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.PennTreeReader;
+import edu.stanford.nlp.trees.Tree;
+
+public class MappedBankStoreTest {
+
+	private static Tree tree(String s) throws IOException {
+		// Tree.valueOf would drop the -TMP
+		return new PennTreeReader(new StringReader(s), new LabeledScoredTreeFactory()).readTree();
+	}
+
+	private static List<String> strings(Iterable<Tree> trees) {
+		List<String> ret = Lists.newArrayList();
+		for (Tree tree : trees)
+			ret.add(tree.toString());
+		return ret;
+	}
+
+	private static File store() throws IOException {
+		Map<String, List<Tree>> bank = ImmutableMap.<String, List<Tree>>of(
+				"NP", ImmutableList.of(tree("(NP (DT a) (NN drum))"), tree("(NP (NN lube))"), tree("(NP (DT the) (NN cat))")),
+				"NP-TMP", ImmutableList.of(tree("(NP-TMP (NN today))")),
+				"VBD", ImmutableList.of(tree("(VBD ate)"), tree("(VBD licked)")));
+		File file = new File(Files.createTempDir(), "bank.cbk");
+		MappedBankStore.write(bank, 42, file);
+		return file;
+	}
+
+	@Test
+	public void RoundTripTest() throws IOException {
+		MappedBankStore store = MappedBankStore.open(store());
+		assertEquals(6, store.size());
+		assertEquals(42, store.version());
+		assertEquals(Lists.newArrayList("(NP (DT a) (NN drum))", "(NP (DT the) (NN cat))"), strings(store.candidates("NP", "DT")));
+		assertEquals(Lists.newArrayList("(NP (DT a) (NN drum))", "(NP (DT the) (NN cat))", "(NP (NN lube))"),
+				strings(store.candidates("NP", null)));
+		assertEquals(Lists.newArrayList("(NP-TMP (NN today))"), strings(store.candidates("NP-TMP", null)));
+		assertEquals(Lists.newArrayList("(VBD licked)"), strings(store.candidates("VBD", "licked")));
+		assertFalse(store.candidates("NP", "JJ").iterator().hasNext());
+		assertFalse(store.candidates("VP", null).iterator().hasNext());
+		assertFalse(store.candidates("A", null).iterator().hasNext());
+		assertFalse(store.candidates("Z", "Z").iterator().hasNext());
+	}
+
+	@Test
+	public void CacheTest() throws IOException {
+		File file = store();
+		MappedBankStore cached = MappedBankStore.open(file);
+		assertSame(Iterables.get(cached.candidates("NP", "DT"), 0), Iterables.get(cached.candidates("NP", "DT"), 0));
+
+		// a slice too big for the cache is parsed again each time it's read
+		MappedBankStore small = MappedBankStore.open(file, 1);
+		assertEquals(Iterables.get(small.candidates("NP", "DT"), 1), Iterables.get(small.candidates("NP", "DT"), 1));
+		assertFalse(Iterables.get(small.candidates("NP", "DT"), 1) == Iterables.get(small.candidates("NP", "DT"), 1));
+		assertSame(Iterables.get(small.candidates("VBD", "ate"), 0), Iterables.get(small.candidates("VBD", "ate"), 0));
+	}
+}
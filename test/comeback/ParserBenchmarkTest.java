@@ -0,0 +1,40 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class ParserBenchmarkTest {
+
+	private static ParserBenchmark.Result result(String model, long nanos, long assignments) {
+		return new ParserBenchmark.Result(model, 0, 0, 10, nanos, 0, 0, assignments);
+	}
+
+	@Test
+	public void SelectTest() {
+		List<ParserBenchmark.Result> results = Lists.newArrayList(
+				result("slow", 4000000000L, 1000), result("fast", 1000000000L, 500), result("ok", 2000000000L, 950));
+		// fast makes too few, slow makes the most but ok is close enough
+		assertEquals("ok", ParserBenchmark.select(results, 0.9).model);
+		assertEquals("fast", ParserBenchmark.select(results, 0.5).model);
+		assertEquals("slow", ParserBenchmark.select(results, 1.0).model);
+	}
+
+	@Test
+	public void SelectionTest() throws IOException {
+		File dir = Files.createTempDir();
+		File file = new File(dir, "parser.properties");
+		assertNull(ParserBenchmark.readSelection(file));
+		ParserBenchmark.writeSelection(file, "lib/models/wsjPCFG.ser.gz", "wsjPCFG: fastest");
+		assertEquals("lib/models/wsjPCFG.ser.gz", ParserBenchmark.readSelection(file));
+		assertEquals("wsjPCFG", ParserBenchmark.modelName(new File("lib/models/wsjPCFG.ser.gz")));
+	}
+}
@@ -0,0 +1,152 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class RecipeBookTest {
+
+	private static final Tree TEMPLATE = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBD ate) (NP (DT the) (NN cat))))");
+
+	/**
+	 * NPs can be replaced by two limbs, VBD by one, nothing else by any
+	 */
+	private static FrankenTreeFactory factory() {
+		Tree drum = Tree.valueOf("(NP (DT a) (NN drum))");
+		Tree lube = Tree.valueOf("(NP (DT some) (JJ old) (NN lube))");
+		Tree licked = Tree.valueOf("(VBD licked)");
+		FrankenTreeFactory ret = new FrankenTreeFactory(TEMPLATE);
+		List<Set<Tree>> limbs = Lists.newArrayList();
+		for (Tree node : TEMPLATE.preOrderNodeList()) {
+			if (node.value().equals("NP"))
+				limbs.add(ImmutableSet.of(drum, lube));
+			else if (node.value().equals("VBD"))
+				limbs.add(ImmutableSet.of(licked));
+			else
+				limbs.add(ImmutableSet.<Tree>of());
+		}
+		ret.limbventory = Limbventory.of(limbs);
+		return ret;
+	}
+
+	@Test
+	public void SitesTest() {
+		RecipeBook book = factory().recipeBook();
+		// NP, VP's VBD and VP's NP
+		assertEquals(3, book.siteCount());
+		assertTrue(book.isValid(7));
+		assertEquals(4, book.size(5));
+		assertEquals(2, book.size(4));
+	}
+
+	@Test
+	public void YieldTest() {
+		final RecipeBook book = factory().recipeBook();
+		final Set<Recipe> recipes = Sets.newHashSet();
+		book.forEach(new RecipeBook.RecipeFn() {
+			@Override
+			public void apply(Recipe recipe) {
+				assertEquals(book.build(recipe).yieldWords().toString(), book.yieldOf(recipe).toString());
+				assertEquals(recipe, book.recipe(book.replacements(recipe)));
+				recipes.add(recipe);
+			}
+		}, new GenerationBudget(Long.MAX_VALUE));
+		// 3 * 2 * 3 choices, less the template itself
+		assertEquals(17, recipes.size());
+	}
+
+	@Test
+	public void ForEachYieldTest() {
+		final List<List<String>> yields = Lists.newArrayList();
+		long n = factory().recipeBook().forEachYield(new RecipeBook.YieldFn() {
+			@Override
+			public void apply(List<String> words) {
+				yields.add(words);
+			}
+		}, new GenerationBudget(Long.MAX_VALUE));
+		assertEquals(17, n);
+		assertEquals(17, Sets.newHashSet(yields).size());
+		assertFalse(yields.contains(Lists.newArrayList("the", "dog", "ate", "the", "cat")));
+	}
+
+	/**
+	 * Same limbs, but drum and lube are one class at each NP
+	 */
+	private static FrankenTreeFactory classFactory() {
+		FrankenTreeFactory plain = factory();
+		List<List<Set<Tree>>> classes = Lists.newArrayList();
+		for (int i=0; i<plain.limbventory.size(); i++) {
+			List<Set<Tree>> nodeClasses = Lists.newArrayList();
+			if (plain.limbventory.count(i) > 0)
+				nodeClasses.add(ImmutableSet.copyOf(plain.limbventory.limbs(i)));
+			classes.add(nodeClasses);
+		}
+		FrankenTreeFactory ret = new FrankenTreeFactory(TEMPLATE);
+		ret.limbventory = Limbventory.ofClasses(classes);
+		return ret;
+	}
+
+	@Test
+	public void ClassesTest() {
+		final RecipeBook book = classFactory().recipeBook();
+		// both NPs: one class tuple standing for 2 * 2 comebacks
+		assertEquals(4, book.size(5));
+		assertEquals(1, book.classTuples(5));
+		assertEquals(4, book.multiplicity(book.recipe(5, 0)));
+
+		final Set<String> yields = Sets.newHashSet();
+		book.forEach(new RecipeBook.RecipeFn() {
+			@Override
+			public void apply(Recipe recipe) {
+				assertEquals(recipe, book.recipe(book.replacements(recipe)));
+				yields.add(book.yieldOf(recipe).toString());
+			}
+		}, new GenerationBudget(Long.MAX_VALUE));
+		assertEquals(17, yields.size());
+		assertEquals(17, classFactory().searchSpace().size());
+	}
+
+	@Test
+	public void GenerateClassesTest() {
+		Set<Tree> plain = factory().generateAllFrankenTrees(new GenerationBudget(Long.MAX_VALUE));
+		assertEquals(17, plain.size());
+		assertEquals(plain, classFactory().generateAllFrankenTrees(new GenerationBudget(Long.MAX_VALUE)));
+		ForkJoinPool pool = new ForkJoinPool(2);
+		assertEquals(plain, classFactory().generateAllFrankenTrees(pool, new GenerationBudget(Long.MAX_VALUE)));
+
+		// one class of 100 NPs at both NPs: a tuple too big for one task is split by members
+		List<Tree> nps = Lists.newArrayList();
+		for (int i=0; i<100; i++)
+			nps.add(Tree.valueOf("(NP (DT a) (NN drum" + i + "))"));
+		List<List<Set<Tree>>> classes = Lists.newArrayList();
+		for (Tree node : TEMPLATE.preOrderNodeList())
+			classes.add(node.value().equals("NP")
+					? ImmutableList.<Set<Tree>>of(ImmutableSet.copyOf(nps)) : ImmutableList.<Set<Tree>>of());
+		FrankenTreeFactory big = new FrankenTreeFactory(TEMPLATE);
+		big.limbventory = Limbventory.ofClasses(classes);
+		Set<Tree> sequential = big.generateAllFrankenTrees(new GenerationBudget(Long.MAX_VALUE));
+		assertEquals(100 + 100 + 100 * 100, sequential.size());
+		assertEquals(sequential, big.generateAllFrankenTrees(pool, new GenerationBudget(Long.MAX_VALUE)));
+		pool.shutdown();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void OtherTemplateTest() {
+		RecipeBook book = factory().recipeBook();
+		Recipe recipe = book.recipe(1, 0);
+		factory().recipeBook().yieldOf(recipe);
+	}
+}
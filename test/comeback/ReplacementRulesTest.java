@@ -0,0 +1,72 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class ReplacementRulesTest {
+
+	private static ReplacementRules.Builder defaultRules() {
+		return new ReplacementRules.Builder()
+				.labelClass("verb", "VP", "VB", "VBG", "VBD")
+				.labelClass("phrase", "VP", "NP")
+				.requireSameFirstChild("phrase")
+				.substitutable("phrase")
+				.substitutable("verb")
+				.restrict("you", "my");
+	}
+
+	@Test
+	public void SameLabelTest() {
+		ReplacementRules rules = defaultRules().compile();
+		Tree toReplace = Tree.valueOf("(NP (DT a) (NN drum))");
+		assertTrue(rules.isValid(toReplace, Tree.valueOf("(NP (DT the) (NN cat))")));
+		assertFalse(rules.isValid(toReplace, Tree.valueOf("(NP (NN lube))")));
+		assertFalse(rules.isValid(toReplace, Tree.valueOf("(VP (VB eat))")));
+	}
+
+	@Test
+	public void RestrictedTest() {
+		ReplacementRules rules = defaultRules().compile();
+		Tree toReplace = Tree.valueOf("(NP (PRP$ my) (NN drum))");
+		assertFalse(rules.isValid(toReplace, Tree.valueOf("(NP (DT the) (NN cat))")));
+		assertFalse(rules.isValid(Tree.valueOf("(NP (DT the) (NN cat))"), toReplace));
+	}
+
+	@Test
+	public void EquivalentTest() {
+		Tree toReplace = Tree.valueOf("(VBD ate)");
+		Tree replacement = Tree.valueOf("(VBG eating)");
+		assertFalse(defaultRules().compile().isValid(toReplace, replacement));
+		assertTrue(defaultRules().equivalent("verb").compile().isValid(toReplace, replacement));
+	}
+
+	@Test
+	public void SubstitutableTest() {
+		ReplacementRules rules = defaultRules().compile();
+		assertTrue(rules.isSubstitutable(Tree.valueOf("(VBG eating)")));
+		assertFalse(rules.isSubstitutable(Tree.valueOf("(JJ fat)")));
+	}
+
+	@Test
+	public void LeafTest() {
+		// leaf labels are words, which aren't interned but must still match exactly
+		ReplacementRules rules = defaultRules().compile();
+		Tree drum = Tree.valueOf("(NN drum)").firstChild();
+		assertTrue(rules.isValid(drum, Tree.valueOf("(NN drum)").firstChild()));
+		assertFalse(rules.isValid(drum, Tree.valueOf("(NN lube)").firstChild()));
+		assertTrue(rules.isValid(Tree.valueOf("(NN drum)"), Tree.valueOf("(NN lube)")));
+		assertEquals(rules.signature(Tree.valueOf("(NN drum)")).firstChild,
+				rules.signature(Tree.valueOf("(NN lube)")).firstChild);
+	}
+
+	@Test
+	public void VersionTest() {
+		assertEquals(defaultRules().compile().version(), defaultRules().compile().version());
+		assertFalse(defaultRules().compile().version() == defaultRules().equivalent("verb").compile().version());
+	}
+}
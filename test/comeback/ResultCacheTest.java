@@ -0,0 +1,47 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class ResultCacheTest {
+
+	private static final Tree PARSE = Tree.valueOf("(ROOT (S (NP (DT the) (NN dog)) (VP (VBD ate))))");
+	private static final List<Tree> COMEBACKS = Lists.newArrayList(
+			Tree.valueOf("(ROOT (S (NP (DT a) (NN drum)) (VP (VBD ate))))"),
+			Tree.valueOf("(ROOT (S (NP (DT the) (NN dog)) (VP (VBD licked))))"));
+
+	@Test
+	public void MemoryTest() {
+		ResultCache cache = new ResultCache(100, null);
+		cache.put("the dog ate", 1, 2, PARSE, COMEBACKS);
+		assertEquals(COMEBACKS, cache.get("  the dog   ate ", 1, 2).comebacks);
+		assertNull(cache.get("the dog ate", 3, 2));
+		assertNull(cache.get("the dog ate", 1, 3));
+	}
+
+	@Test
+	public void DiskTest() {
+		File dir = Files.createTempDir();
+		new ResultCache(100, dir).put("the dog ate", 1, 2, PARSE, COMEBACKS);
+
+		// a new cache only has the disk tier to go on
+		ResultCache cache = new ResultCache(100, dir);
+		ResultCache.Result result = cache.get("the dog ate", 1, 2);
+		assertEquals(PARSE, result.parse);
+		assertEquals(COMEBACKS, result.comebacks);
+		assertEquals(1, cache.diskHits());
+
+		assertEquals(1, cache.evictStale(1, 3));
+		assertNull(new ResultCache(100, dir).get("the dog ate", 1, 2));
+	}
+}
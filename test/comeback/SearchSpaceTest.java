@@ -0,0 +1,79 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class SearchSpaceTest {
+
+	private static final Tree TEMPLATE = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBD ate) (NP (DT the) (NN cat))))");
+
+	/**
+	 * NPs can be replaced by two limbs, VBD by one, nothing else by any
+	 */
+	private static List<Set<Tree>> limbventory() {
+		Tree drum = Tree.valueOf("(NP (DT a) (NN drum))");
+		Tree lube = Tree.valueOf("(NP (DT some) (NN lube))");
+		Tree licked = Tree.valueOf("(VBD licked)");
+		List<Set<Tree>> ret = Lists.newArrayList();
+		for (Tree node : TEMPLATE.preOrderNodeList()) {
+			if (node.value().equals("NP"))
+				ret.add(Sets.newHashSet(drum, lube));
+			else if (node.value().equals("VBD"))
+				ret.add(ImmutableSet.of(licked));
+			else
+				ret.add(Sets.<Tree>newHashSet());
+		}
+		return ret;
+	}
+
+	@Test
+	public void SizeTest() {
+		SearchSpace space = new SearchSpace(TEMPLATE, limbventory());
+		// 3 choices per NP, 2 for the verb, minus the template itself
+		assertEquals(3 * 3 * 2 - 1, space.size());
+		assertEquals(Math.log(17), space.logSize(), 1e-9);
+	}
+
+	@Test
+	public void SampleTest() {
+		SearchSpace space = new SearchSpace(TEMPLATE, limbventory());
+		Random rng = new Random(0);
+		Set<List<Tree>> seen = Sets.newHashSet();
+		for (int i=0; i<2000; i++) {
+			List<Tree> sample = space.sample(rng);
+			boolean replacesSomething = false;
+			for (Tree limb : sample)
+				replacesSomething |= limb != null;
+			assertTrue(replacesSomething);
+			seen.add(sample);
+		}
+		assertEquals(17, seen.size());
+	}
+
+	@Test
+	public void FactoryTest() {
+		FrankenTreeFactory factory = new FrankenTreeFactory(TEMPLATE);
+		factory.limbventory = Limbventory.of(limbventory());
+		SearchSpace space = factory.searchSpace();
+		assertSame(space, factory.searchSpace());
+		assertEquals(17, space.size());
+
+		factory.limbventory = Limbventory.empty(TEMPLATE.size());
+		assertNotSame(space, factory.searchSpace());
+		assertEquals(0, factory.searchSpace().size());
+	}
+}
@@ -0,0 +1,86 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class ShardedRunTest {
+
+	private static final List<String> LINES = Lists.newArrayList(
+			"the dog ate", "a bear is eating", "your mother is so fat", "the dog ate",
+			"i like turtles", "what is this", "go away", "no");
+
+	/**
+	 * Writes each sentence back in capitals
+	 */
+	private static final ComebackGenerator.SentenceFn<Long> SHOUT = new ComebackGenerator.SentenceFn<Long>() {
+		@Override
+		public Long apply(String sentence) {
+			return null;
+		}
+
+		@Override
+		public Long apply(String sentence, PrintWriter out) {
+			out.write(sentence.toUpperCase() + "\n");
+			return 1L;
+		}
+	};
+
+	@Test
+	public void ShardTest() {
+		List<ShardedRun.Shard> shards = ShardedRun.shards(Lists.newArrayList(new File("a"), new File("b")), 3);
+		assertEquals(6, shards.size());
+		assertEquals(new File("b"), shards.get(4).file);
+		assertEquals(1, shards.get(4).range);
+
+		// every line is in exactly one shard of a file
+		for (String line : LINES) {
+			int in = 0;
+			for (ShardedRun.Shard shard : shards.subList(0, 3))
+				if (shard.contains(line))
+					in++;
+			assertEquals(1, in);
+		}
+		assertEquals(0, ShardedRun.Shard.rangeOf(0, 3));
+		assertEquals(2, ShardedRun.Shard.rangeOf(-1, 3));
+		assertEquals(shards.get(5).toString(), ShardedRun.Shard.parse(5, shards.get(5).toString()).toString());
+	}
+
+	@Test
+	public void WorkAndMergeTest() throws IOException {
+		File dir = Files.createTempDir();
+		File input = new File(dir, "input");
+		Files.write(Joiner.on("\n").join(LINES) + "\n", input, Charset.forName("UTF-8"));
+		final File output = new File(dir, "output");
+		File jobDir = new File(dir, "job");
+
+		List<ShardedRun.Shard> shards = ShardedRun.shards(Lists.newArrayList(input), 4);
+		ShardedRun.prepare(jobDir, shards);
+		assertEquals(4, ShardedRun.work(jobDir, SHOUT));
+		ShardedRun.Metrics metrics = ShardedRun.merge(jobDir, shards, new Function<File, File>() {
+			@Override
+			public File apply(File file) {
+				return output;
+			}
+		});
+
+		assertEquals(4, metrics.shards);
+		assertEquals(LINES.size(), metrics.sentences);
+		assertEquals(LINES.size(), metrics.comebacks);
+		List<String> expected = Lists.newArrayList();
+		for (String line : LINES)
+			expected.add(line.toUpperCase());
+		assertEquals(expected, Files.readLines(output, Charset.forName("UTF-8")));
+	}
+}
@@ -0,0 +1,59 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.Set;
+
+import org.junit.Test;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class SpaceExplanationTest {
+
+	private static final Tree TEMPLATE = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBD ate) (NP (DT the) (NN cat))))");
+
+	/**
+	 * The VP and both NPs can be replaced by two limbs, nothing else by any
+	 */
+	private static FrankenTreeFactory factory() {
+		Tree drum = Tree.valueOf("(NP (DT a) (NN drum))");
+		Tree lube = Tree.valueOf("(NP (DT some) (NN lube))");
+		Tree licked = Tree.valueOf("(VP (VBD licked) (NP (DT a) (NN drum)))");
+		Tree sat = Tree.valueOf("(VP (VBD sat))");
+		FrankenTreeFactory ret = new FrankenTreeFactory(TEMPLATE);
+		List<Set<Tree>> limbs = Lists.newArrayList();
+		for (Tree node : TEMPLATE.preOrderNodeList()) {
+			if (node.value().equals("NP"))
+				limbs.add(ImmutableSet.of(drum, lube));
+			else if (node.value().equals("VP"))
+				limbs.add(ImmutableSet.of(licked, sat));
+			else
+				limbs.add(ImmutableSet.<Tree>of());
+		}
+		ret.limbventory = Limbventory.of(limbs);
+		return ret;
+	}
+
+	@Test
+	public void ExplainTest() {
+		SpaceExplanation explanation = factory().explain();
+		assertEquals(14, explanation.nodeCount);
+		assertEquals(3, explanation.siteCount);
+		assertEquals(2, (int) explanation.limbCounts.get(1));
+		assertEquals(0, (int) explanation.limbCounts.get(0));
+		// {NP}, {VP}, {NP'}, {NP, VP}, {NP, NP'}; the VP contains the second NP
+		assertEquals(5, explanation.validSets);
+		// 2 + 2 + 2 + 4 + 4
+		assertEquals(14, explanation.space.size());
+
+		SpaceExplanation.SubstitutionSet largest = explanation.largestSets.get(0);
+		assertEquals(4, largest.size);
+		assertEquals(ImmutableList.of(1, 6), largest.nodes);
+		assertEquals(5, explanation.largestSets.size());
+	}
+}
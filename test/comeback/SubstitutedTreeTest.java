@@ -0,0 +1,54 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import util.Fingerprints;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class SubstitutedTreeTest {
+
+	private static final Tree TEMPLATE = Tree.valueOf("(S (NP (DT a) (NN drum)) (VP (VBD licked) (NP (DT the) (NN cat))))");
+	private static final Tree LUBE = Tree.valueOf("(NP (DT some) (NN lube))");
+	private static final Tree ATE = Tree.valueOf("(VBD ate)");
+
+	@Test
+	public void SubstituteTest() {
+		SubstitutedTree init = new SubstitutedTree(TEMPLATE);
+		assertEquals(14, init.size());
+		assertEquals("(NP (DT a) (NN drum))", init.node(1).toString());
+
+		SubstitutedTree lubed = init.substitute(1, LUBE);
+		assertEquals(1, lubed.substitutionCount);
+		assertEquals("[some, lube, licked, the, cat]", lubed.tree.yieldWords().toString());
+		assertSame(LUBE, lubed.node(1));
+		// the untouched VP is shared, and the template isn't changed
+		assertSame(TEMPLATE.getChild(1), lubed.tree.getChild(1));
+		assertEquals("[a, drum, licked, the, cat]", TEMPLATE.yieldWords().toString());
+
+		// the substitution and everything in it are covered, its parent isn't
+		assertTrue(lubed.isCovered(1));
+		assertTrue(lubed.isCovered(3));
+		assertFalse(lubed.isCovered(0));
+		assertFalse(lubed.isCovered(7));
+	}
+
+	@Test
+	public void FingerprintTest() {
+		SubstitutedTree init = new SubstitutedTree(TEMPLATE);
+		// predicted before building, and the same either way round
+		assertEquals(init.substitute(7, ATE).fingerprint, init.fingerprintWith(7, Fingerprints.of(ATE)));
+		SubstitutedTree lubeFirst = init.substitute(1, LUBE).substitute(7, ATE);
+		SubstitutedTree ateFirst = init.substitute(7, ATE).substitute(1, LUBE);
+		assertEquals(lubeFirst.fingerprint, ateFirst.fingerprint);
+		assertEquals(2, ateFirst.substitutionCount);
+
+		// a substitution is marked, so it isn't the same state as the template itself
+		assertFalse(init.fingerprint == init.substitute(1, TEMPLATE.getChild(0)).fingerprint);
+	}
+}
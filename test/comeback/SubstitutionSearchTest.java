@@ -0,0 +1,83 @@
+package comeback;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class SubstitutionSearchTest {
+
+	private static final ReplacementRules RULES = new ReplacementRules.Builder()
+			.labelClass("verb", "VP", "VB", "VBG", "VBD")
+			.labelClass("phrase", "VP", "NP")
+			.requireSameFirstChild("phrase")
+			.substitutable("phrase")
+			.substitutable("verb")
+			.compile();
+	private static final Tree TEMPLATE = Tree.valueOf("(S (NP (DT a) (NN drum)) (VP (VBD licked) (NP (DT the) (NN cat))))");
+	private static final List<Tree> SUBSTITUTIONS = Lists.newArrayList(
+			Tree.valueOf("(NP (DT some) (NN lube))"), Tree.valueOf("(VBD ate)"), Tree.valueOf("(JJ old)"));
+
+	private static Set<String> yields(Set<SubstitutedTree> trees) {
+		Set<String> ret = Sets.newHashSet();
+		for (SubstitutedTree tree : trees)
+			ret.add(tree.tree.yieldWords().toString());
+		return ret;
+	}
+
+	@Test
+	public void DepthTest() {
+		// both NPs can be lubed and the VBD eaten, so there are 3, 3 and 1 trees with 1, 2 and 3 substitutions
+		assertEquals(3, new SubstitutionSearch(RULES, 1, null).search(TEMPLATE, SUBSTITUTIONS, new GenerationBudget(100)).size());
+		assertEquals(6, new SubstitutionSearch(RULES, 2, null).search(TEMPLATE, SUBSTITUTIONS, new GenerationBudget(100)).size());
+		Set<SubstitutedTree> all = new SubstitutionSearch(RULES, 5, null).search(TEMPLATE, SUBSTITUTIONS, new GenerationBudget(100));
+		assertEquals(7, all.size());
+		assertEquals(7, yields(all).size());
+		assertTrue(yields(all).contains("[some, lube, ate, some, lube]"));
+		assertFalse(yields(all).contains("[a, drum, licked, the, cat]"));
+	}
+
+	@Test
+	public void ExecutorTest() {
+		// enough verbs that the first level is split into tasks
+		List<Tree> substitutions = Lists.newArrayList(SUBSTITUTIONS);
+		for (int i=0; i<70; i++)
+			substitutions.add(Tree.valueOf("(VBD verbed" + i + ")"));
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+		try {
+			Set<SubstitutedTree> parallel = new SubstitutionSearch(RULES, 3, executor)
+					.search(TEMPLATE, substitutions, new GenerationBudget(1000));
+			Set<SubstitutedTree> sequential = new SubstitutionSearch(RULES, 3, null)
+					.search(TEMPLATE, substitutions, new GenerationBudget(1000));
+			// each NP kept or lubed, the VBD kept or one of 71 verbs, less the template
+			assertEquals(2 * 2 * 72 - 1, sequential.size());
+			assertEquals(yields(sequential), yields(parallel));
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void BudgetTest() {
+		GenerationBudget budget = new GenerationBudget(4);
+		Set<SubstitutedTree> some = new SubstitutionSearch(RULES, 3, null).search(TEMPLATE, SUBSTITUTIONS, budget);
+		assertEquals(4, some.size());
+		assertTrue(budget.isTruncated());
+
+		GenerationBudget cancelled = new GenerationBudget(100);
+		cancelled.cancel();
+		assertEquals(0, new SubstitutionSearch(RULES, 3, null).search(TEMPLATE, SUBSTITUTIONS, cancelled).size());
+		assertTrue(cancelled.isTruncated());
+	}
+}
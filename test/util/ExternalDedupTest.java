@@ -0,0 +1,65 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+import com.google.common.io.Files;
+
+public class ExternalDedupTest {
+
+	private static List<String> finish(ExternalDedup dedup) throws IOException {
+		final List<String> ret = Lists.newArrayList();
+		dedup.finish(new ExternalDedup.RecordFn() {
+			@Override
+			public void apply(long fingerprint, String record) {
+				ret.add(record);
+			}
+		});
+		return ret;
+	}
+
+	@Test
+	public void InMemoryTest() throws IOException {
+		ExternalDedup dedup = new ExternalDedup(100, null);
+		assertTrue(dedup.add(3, "c"));
+		assertTrue(dedup.add(1, "a"));
+		assertFalse(dedup.add(3, "c"));
+		assertEquals(0, dedup.runs());
+		assertEquals(Lists.newArrayList("a", "c"), finish(dedup));
+	}
+
+	@Test
+	public void SpillTest() throws IOException {
+		File dir = Files.createTempDir();
+		ExternalDedup dedup = new ExternalDedup(3, dir);
+		// every record is added twice, far enough apart that the first copy has been spilled
+		for (int round=0; round<2; round++)
+			for (long i=10; i>0; i--)
+				dedup.add(i, "r" + i);
+		dedup.add(-5, "negative");
+		assertTrue(dedup.runs() > 1);
+		assertEquals(21, dedup.spilled());
+
+		List<String> expected = Lists.newArrayList("negative");
+		for (int i=1; i<=10; i++)
+			expected.add("r" + i);
+		assertEquals(expected, finish(dedup));
+		assertEquals(0, dir.listFiles().length);
+	}
+
+	@Test
+	public void FirstAddedWinsTest() throws IOException {
+		ExternalDedup dedup = new ExternalDedup(1, null);
+		dedup.add(7, "first");
+		dedup.add(7, "second");
+		assertEquals(Lists.newArrayList("first"), finish(dedup));
+	}
+}
@@ -5,8 +5,10 @@ import java.util.Set;
 
 import org.junit.Test;
 
+import util.Iterators.CartesianCollectionIterable;
 import util.Iterators.CartesianIterable;
 import util.Iterators.CartesianIterator;
+import util.Iterators.PowerSetIterable;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
@@ -81,4 +83,34 @@ public class IteratorsTest {
 		
 	}
 	
+	@Test
+	public void CartesianCollectionSizeTest() {
+		ImmutableList<List<Integer>> subspaces = ImmutableList.<List<Integer>>builder()
+				.add(Lists.newArrayList(0,1,2))
+				.add(Lists.<Integer>newArrayList())
+				.add(Lists.newArrayList(0,1))
+				.build();
+		
+		CartesianCollectionIterable<Integer> points = new CartesianCollectionIterable<Integer>(subspaces);
+		int count = 0;
+		for (List<Integer> point : points)
+			count++;
+		assertEquals(6, count);
+		assertEquals(6, points.size());
+	}
+	
+	@Test
+	public void SaturatedSizeTest() {
+		List<Integer> big = Lists.newArrayList();
+		for (int i=0; i<1000; i++)
+			big.add(i);
+		ImmutableList.Builder<List<Integer>> subspaces = ImmutableList.builder();
+		for (int i=0; i<10; i++)
+			subspaces.add(big);
+		
+		assertEquals(Long.MAX_VALUE, new CartesianCollectionIterable<Integer>(subspaces.build()).size());
+		assertEquals(Long.MAX_VALUE, new PowerSetIterable<Integer>(ImmutableList.copyOf(big)).size());
+		assertEquals(1L << 40, new PowerSetIterable<Integer>(ImmutableList.copyOf(big.subList(0, 40))).size());
+	}
+	
 }
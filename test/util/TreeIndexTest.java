@@ -0,0 +1,81 @@
+package util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+import edu.stanford.nlp.trees.Tree;
+
+public class TreeIndexTest {
+
+	private static final Tree TREE = Tree.valueOf("(S (NP (DT the) (NN dog)) (VP (VBD ate) (NP (DT the) (NN dog))))");
+
+	@Test
+	public void PreOrderTest() {
+		TreeIndex index = TreeIndex.of(TREE);
+		assertEquals(TREE.preOrderNodeList(), index.nodes());
+		for (int i=0; i<index.size(); i++)
+			assertTrue(index.node(i) == TREE.preOrderNodeList().get(i));
+		assertTrue(index == TreeIndex.of(TREE));
+	}
+
+	@Test
+	public void IdentityTest() {
+		TreeIndex index = TreeIndex.of(TREE);
+		// the two NPs are equal but are different nodes
+		Tree subject = TREE.getChild(0);
+		Tree object = TREE.getChild(1).getChild(1);
+		assertEquals(subject, object);
+		assertEquals(1, index.indexOf(subject));
+		assertEquals(9, index.indexOf(object));
+		assertEquals(-1, index.indexOf(subject.deepCopy()));
+	}
+
+	@Test
+	public void RelativesTest() {
+		TreeIndex index = TreeIndex.of(TREE);
+		assertEquals(-1, index.parent(0));
+		assertEquals(0, index.parent(1));
+		assertEquals(1, index.childIndex(6));
+		assertEquals(index.size(), index.end(0));
+		assertEquals(5, index.subtreeSize(1));
+		assertTrue(index.dominates(0, 3));
+		assertTrue(index.dominates(6, 9));
+		assertFalse(index.dominates(7, 9));
+		assertFalse(index.dominates(1, 7));
+		assertFalse(index.dominates(1, 1));
+	}
+
+	@Test
+	public void BreadthFirstTest() {
+		final List<String> labels = Lists.newArrayList();
+		TreeIndex.of(TREE).breadthFirst(new TreeIndex.Visitor() {
+			@Override
+			public boolean visit(Tree node, int index, int depth) {
+				labels.add(node.value());
+				// don't go inside the verb phrase
+				return !node.value().equals("VP");
+			}
+		});
+		assertEquals(Lists.newArrayList("S", "NP", "VP", "DT", "NN", "the", "dog"), labels);
+	}
+
+	@Test
+	public void PreOrderSkipTest() {
+		final List<Integer> visited = Lists.newArrayList();
+		TreeIndex.of(TREE).preOrder(new TreeIndex.Visitor() {
+			@Override
+			public boolean visit(Tree node, int index, int depth) {
+				visited.add(index);
+				return index != 1;
+			}
+		});
+		assertEquals(Lists.newArrayList(0, 1, 6, 7, 8, 9, 10, 11, 12, 13), visited);
+	}
+}